@@ -1,8 +1,34 @@
 package de.skuzzle.inject.proxy;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.lang.ref.WeakReference;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.UnaryOperator;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -11,13 +37,25 @@ import org.junit.Ignore;
 import org.junit.Test;
 
 import com.google.inject.AbstractModule;
+import com.google.inject.Binder;
 import com.google.inject.CreationException;
 import com.google.inject.Guice;
 import com.google.inject.Injector;
 import com.google.inject.Key;
+import com.google.inject.Module;
+import com.google.inject.OutOfScopeException;
+import com.google.inject.PrivateModule;
+import com.google.inject.Provider;
+import com.google.inject.Scope;
+import com.google.inject.ScopeAnnotation;
+import com.google.inject.Scopes;
 import com.google.inject.Singleton;
 import com.google.inject.name.Names;
 
+import de.skuzzle.inject.proxy.sample.ProtectedIdempotentSampleClass;
+
+import net.sf.cglib.proxy.Factory;
+
 public class ScopedProxyBinderTest {
 
     public static interface SampleClass {
@@ -253,4 +291,1015 @@ public class ScopedProxyBinderTest {
         });
         injector.getInstance(ConcreteSampleClassWithMultipleCtors.class);
     }
+
+    public static interface OtherSampleClass {
+
+    }
+
+    public static class OtherSampleClassImpl implements OtherSampleClass {
+
+    }
+
+    @Test
+    public void testBindAll() throws Exception {
+        final Map<Key<?>, Key<?>> bindings = new HashMap<>();
+        bindings.put(Key.get(SampleClass.class), Key.get(SampleClassImpl.class));
+        bindings.put(Key.get(OtherSampleClass.class),
+                Key.get(OtherSampleClassImpl.class));
+
+        final Injector injector = Guice.createInjector(new AbstractModule() {
+
+            @Override
+            protected void configure() {
+                ScopedProxyBinder.using(binder())
+                        .bindAll(bindings, Scopes.NO_SCOPE);
+            }
+        });
+
+        final SampleClass sampleClass = injector.getInstance(SampleClass.class);
+        assertNotEquals(sampleClass.hashCode(), sampleClass.hashCode());
+        final OtherSampleClass other = injector.getInstance(OtherSampleClass.class);
+        assertNotEquals(other.hashCode(), other.hashCode());
+
+        assertDeclaredByTest(injector.getBinding(SampleClass.class).getSource());
+    }
+
+    private static void assertDeclaredByTest(Object source) {
+        assertTrue(source.toString(), source.toString()
+                .startsWith(ScopedProxyBinderTest.class.getName() + "$"));
+    }
+
+    /** Binding helper which asks Guice to be skipped when determining sources. */
+    public static final class BindingHelper {
+
+        static void bindSample(Binder binder) {
+            ScopedProxyBinder.using(binder.skipSources(BindingHelper.class))
+                    .bindAll(Collections.singletonMap(Key.get(SampleClass.class),
+                            Key.get(SampleClassImpl.class)), Scopes.NO_SCOPE);
+        }
+    }
+
+    @Test
+    public void testBindingSourceIsCaller() throws Exception {
+        final Injector injector = Guice.createInjector(new AbstractModule() {
+
+            @Override
+            protected void configure() {
+                BindingHelper.bindSample(binder());
+                ScopedProxyBinder.using(binder())
+                        .bind(OtherSampleClass.class)
+                        .to(OtherSampleClassImpl.class);
+            }
+        });
+
+        assertDeclaredByTest(injector.getBinding(SampleClass.class).getSource());
+        assertDeclaredByTest(injector.getBinding(OtherSampleClass.class).getSource());
+    }
+
+    @Test(expected = CreationException.class)
+    public void testBindAllIncompatibleTypes() throws Exception {
+        final Map<Key<?>, Key<?>> bindings = new HashMap<>();
+        bindings.put(Key.get(SampleClass.class), Key.get(OtherSampleClassImpl.class));
+
+        Guice.createInjector(new AbstractModule() {
+
+            @Override
+            protected void configure() {
+                ScopedProxyBinder.using(binder())
+                        .bindAll(bindings, Scopes.NO_SCOPE);
+            }
+        });
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testBindAllForbidSingleton() throws Exception {
+        Guice.createInjector(new AbstractModule() {
+
+            @Override
+            protected void configure() {
+                ScopedProxyBinder.using(binder())
+                        .bindAll(Collections.singletonMap(Key.get(SampleClass.class),
+                                Key.get(SampleClassImpl.class)), Singleton.class);
+            }
+        });
+    }
+
+    public static interface IndexedSampleClass {
+
+    }
+
+    @ScopedProxy(bindAs = IndexedSampleClass.class, scope = IndexedScope.class)
+    public static class IndexedSampleClassImpl implements IndexedSampleClass {
+
+    }
+
+    @Target({ ElementType.TYPE, ElementType.METHOD })
+    @Retention(RetentionPolicy.RUNTIME)
+    @ScopeAnnotation
+    public static @interface IndexedScope {
+
+    }
+
+    @Test
+    public void testBindIndexed() throws Exception {
+        final Injector injector = Guice.createInjector(new AbstractModule() {
+
+            @Override
+            protected void configure() {
+                bindScope(IndexedScope.class, Scopes.NO_SCOPE);
+                ScopedProxyBinder.using(binder())
+                        .bindIndexed(getClass().getClassLoader());
+            }
+        });
+
+        final IndexedSampleClass sampleClass = injector
+                .getInstance(IndexedSampleClass.class);
+        assertNotEquals(sampleClass.hashCode(), sampleClass.hashCode());
+    }
+
+    public static class ConcreteSampleClassWithProtectedMethod {
+
+        public int publicMethod() {
+            return 1;
+        }
+
+        protected int protectedMethod() {
+            return 2;
+        }
+
+        int packagePrivateMethod() {
+            return 3;
+        }
+    }
+
+    public static class ConcreteSampleClassWithProtectedMethodImpl
+            extends ConcreteSampleClassWithProtectedMethod {
+
+        @Override
+        protected int protectedMethod() {
+            return 4;
+        }
+    }
+
+    @Test
+    public void testInterceptPublicMethodsOnly() throws Exception {
+        final Injector injector = Guice.createInjector(new AbstractModule() {
+
+            @Override
+            protected void configure() {
+                ScopedProxyBinder.using(binder())
+                        .andInterceptPublicMethodsOnly()
+                        .bind(ConcreteSampleClassWithProtectedMethod.class)
+                        .to(ConcreteSampleClassWithProtectedMethodImpl.class);
+            }
+        });
+
+        final ConcreteSampleClassWithProtectedMethod instance = injector
+                .getInstance(ConcreteSampleClassWithProtectedMethod.class);
+        assertEquals(1, instance.publicMethod());
+        assertNotEquals(instance.hashCode(), instance.hashCode());
+
+        final Class<?> proxyClass = instance.getClass();
+        proxyClass.getDeclaredMethod("publicMethod");
+        assertNotOverridden(proxyClass, "protectedMethod");
+        assertNotOverridden(proxyClass, "packagePrivateMethod");
+        // executes the inherited implementation on the proxy itself
+        assertEquals(2, instance.protectedMethod());
+    }
+
+    @Test
+    public void testInterceptNonPublicMethodsByDefault() throws Exception {
+        final Injector injector = Guice.createInjector(new AbstractModule() {
+
+            @Override
+            protected void configure() {
+                ScopedProxyBinder.using(binder())
+                        .bind(ConcreteSampleClassWithProtectedMethod.class)
+                        .to(ConcreteSampleClassWithProtectedMethodImpl.class);
+            }
+        });
+
+        final ConcreteSampleClassWithProtectedMethod instance = injector
+                .getInstance(ConcreteSampleClassWithProtectedMethod.class);
+        final Class<?> proxyClass = instance.getClass();
+        proxyClass.getDeclaredMethod("publicMethod");
+        proxyClass.getDeclaredMethod("protectedMethod");
+        proxyClass.getDeclaredMethod("packagePrivateMethod");
+        assertEquals(4, instance.protectedMethod());
+    }
+
+    public static class SampleList extends AbstractList<String> {
+
+        @Override
+        public String get(int index) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        @Override
+        public int size() {
+            return 0;
+        }
+    }
+
+    @Test
+    public void testJdkProtectedMethodIsNotDelegated() throws Exception {
+        final Injector injector = Guice.createInjector(new AbstractModule() {
+
+            @Override
+            protected void configure() {
+                ScopedProxyBinder.using(binder())
+                        .bind(SampleList.class)
+                        .toProvider(SampleList::new);
+            }
+        });
+
+        final SampleList proxy = injector.getInstance(SampleList.class);
+        // AbstractList.removeRange can not be made accessible for delegation
+        try {
+            proxy.getClass().getDeclaredMethod("removeRange", int.class, int.class);
+            fail("Expected removeRange not to be overridden");
+        } catch (final NoSuchMethodException expected) {
+            // expected
+        }
+        assertTrue(proxy.isEmpty());
+    }
+
+    private static void assertNotOverridden(Class<?> proxyClass, String methodName) {
+        try {
+            proxyClass.getDeclaredMethod(methodName);
+            fail("Expected " + methodName + " not to be overridden");
+        } catch (final NoSuchMethodException expected) {
+            // expected
+        }
+    }
+
+    public static interface MemoizedSampleClass {
+
+        @Idempotent
+        int idempotentMethod(String argument);
+
+        int calls();
+    }
+
+    public static class MemoizedSampleClassImpl implements MemoizedSampleClass {
+        private int calls;
+
+        @Override
+        public int idempotentMethod(String argument) {
+            return ++this.calls;
+        }
+
+        @Override
+        public int calls() {
+            return this.calls;
+        }
+    }
+
+    /** Scope which keeps a single instance per key until it is reset. */
+    private static class ResettableScope implements Scope {
+        private final Map<Key<?>, Object> instances = new HashMap<>();
+
+        void reset() {
+            this.instances.clear();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> Provider<T> scope(Key<T> key, Provider<T> unscoped) {
+            return () -> (T) this.instances.computeIfAbsent(key, k -> unscoped.get());
+        }
+    }
+
+    @Test
+    public void testIdempotentMethodIsCachedPerTarget() throws Exception {
+        final ResettableScope scope = new ResettableScope();
+        final Injector injector = Guice.createInjector(new AbstractModule() {
+
+            @Override
+            protected void configure() {
+                ScopedProxyBinder.using(binder())
+                        .bind(MemoizedSampleClass.class)
+                        .to(MemoizedSampleClassImpl.class)
+                        .in(scope);
+            }
+        });
+
+        final MemoizedSampleClass proxy = injector.getInstance(MemoizedSampleClass.class);
+        assertEquals(1, proxy.idempotentMethod("a"));
+        assertEquals(1, proxy.idempotentMethod("a"));
+        assertEquals(2, proxy.idempotentMethod("b"));
+        assertEquals(2, proxy.calls());
+
+        scope.reset();
+        assertEquals(0, proxy.calls());
+        assertEquals(1, proxy.idempotentMethod("a"));
+        assertEquals(1, proxy.idempotentMethod("a"));
+        assertEquals(1, proxy.calls());
+    }
+
+    public static interface SelfReturningSampleClass {
+
+        @Idempotent
+        Object self();
+    }
+
+    public static class SelfReturningSampleClassImpl implements SelfReturningSampleClass {
+
+        @Override
+        public Object self() {
+            return this;
+        }
+    }
+
+    @Test
+    public void testIdempotentResultDoesNotRetainTarget() throws Exception {
+        final ResettableScope scope = new ResettableScope();
+        final Injector injector = Guice.createInjector(new AbstractModule() {
+
+            @Override
+            protected void configure() {
+                ScopedProxyBinder.using(binder())
+                        .bind(SelfReturningSampleClass.class)
+                        .to(SelfReturningSampleClassImpl.class)
+                        .in(scope);
+            }
+        });
+
+        final SelfReturningSampleClass proxy = injector
+                .getInstance(SelfReturningSampleClass.class);
+        final WeakReference<Object> target = new WeakReference<>(proxy.self());
+        scope.reset();
+
+        for (int i = 0; i < 100 && target.get() != null; ++i) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(target.get());
+    }
+
+    public static class ProtectedIdempotentSampleClassImpl
+            extends ProtectedIdempotentSampleClass {
+
+    }
+
+    @Test
+    public void testProtectedIdempotentMethod() throws Exception {
+        final Injector injector = Guice.createInjector(new AbstractModule() {
+
+            @Override
+            protected void configure() {
+                ScopedProxyBinder.using(binder())
+                        .bind(ProtectedIdempotentSampleClass.class)
+                        .to(ProtectedIdempotentSampleClassImpl.class)
+                        .in(new ResettableScope());
+            }
+        });
+
+        final ProtectedIdempotentSampleClass proxy = injector
+                .getInstance(ProtectedIdempotentSampleClass.class);
+        assertEquals(1, ProtectedIdempotentSampleClass.callProtectedIdempotent(proxy));
+        assertEquals(1, ProtectedIdempotentSampleClass.callProtectedIdempotent(proxy));
+        assertEquals(1, proxy.calls());
+    }
+
+    @Singleton
+    public static class SingletonSampleClassImpl implements SampleClass {
+
+    }
+
+    @Test
+    public void testNoProxyForSingletonTarget() throws Exception {
+        final Injector injector = Guice.createInjector(new AbstractModule() {
+
+            @Override
+            protected void configure() {
+                ScopedProxyBinder.using(binder())
+                        .andBypassSingletonTargets()
+                        .bind(SampleClass.class)
+                        .to(SingletonSampleClassImpl.class);
+            }
+        });
+
+        final SampleClass sampleClass = injector.getInstance(SampleClass.class);
+        assertSame(injector.getInstance(SingletonSampleClassImpl.class), sampleClass);
+    }
+
+    @Test
+    public void testProxyForSingletonTargetByDefault() throws Exception {
+        final Injector injector = Guice.createInjector(new AbstractModule() {
+
+            @Override
+            protected void configure() {
+                ScopedProxyBinder.using(binder())
+                        .bind(SampleClass.class)
+                        .to(SingletonSampleClassImpl.class);
+            }
+        });
+
+        final SampleClass sampleClass = injector.getInstance(SampleClass.class);
+        assertTrue(ScopedProxies.isScopedProxy(sampleClass));
+        assertSame(injector.getInstance(SingletonSampleClassImpl.class),
+                ScopedProxies.resolve(sampleClass));
+    }
+
+    public static class CyclicFoo {
+
+        public String name() {
+            return "foo";
+        }
+    }
+
+    @Singleton
+    public static class CyclicFooImpl extends CyclicFoo {
+
+        @Inject
+        public CyclicFooImpl(CyclicBar bar) {}
+    }
+
+    @Singleton
+    public static class CyclicBar {
+        private final CyclicFoo foo;
+
+        @Inject
+        public CyclicBar(CyclicFoo foo) {
+            this.foo = foo;
+        }
+    }
+
+    @Test
+    public void testProxyBreaksSingletonCycle() throws Exception {
+        final Injector injector = Guice.createInjector(new AbstractModule() {
+
+            @Override
+            protected void configure() {
+                binder().disableCircularProxies();
+                ScopedProxyBinder.using(binder())
+                        .bind(CyclicFoo.class)
+                        .to(CyclicFooImpl.class);
+            }
+        });
+
+        final CyclicBar bar = injector.getInstance(CyclicBar.class);
+        assertTrue(ScopedProxies.isScopedProxy(bar.foo));
+        assertEquals("foo", bar.foo.name());
+    }
+
+    @Test
+    public void testNoProxyForInstanceTarget() throws Exception {
+        final SampleClass instance = new SampleClassImpl();
+        final Injector injector = Guice.createInjector(new AbstractModule() {
+
+            @Override
+            protected void configure() {
+                ScopedProxyBinder.using(binder())
+                        .andBypassSingletonTargets()
+                        .bind(SampleClass.class)
+                        .toInstance(instance);
+            }
+        });
+
+        assertSame(instance, injector.getInstance(SampleClass.class));
+    }
+
+    public static interface ThrowingSampleClass {
+        void fail();
+    }
+
+    public static class ThrowingSampleClassImpl implements ThrowingSampleClass {
+
+        @Override
+        public void fail() {
+            throw new IllegalStateException();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testExceptionIsNotWrapped() throws Exception {
+        final Injector injector = Guice.createInjector(new AbstractModule() {
+
+            @Override
+            protected void configure() {
+                ScopedProxyBinder.using(binder())
+                        .bind(ThrowingSampleClass.class)
+                        .to(ThrowingSampleClassImpl.class);
+            }
+        });
+
+        injector.getInstance(ThrowingSampleClass.class).fail();
+    }
+
+    @Test
+    public void testResolveCapturesScopedObject() throws Exception {
+        final ResettableScope scope = new ResettableScope();
+        final Injector injector = Guice.createInjector(new AbstractModule() {
+
+            @Override
+            protected void configure() {
+                ScopedProxyBinder.using(binder())
+                        .bind(MemoizedSampleClass.class)
+                        .to(MemoizedSampleClassImpl.class)
+                        .in(scope);
+            }
+        });
+
+        final MemoizedSampleClass proxy = injector.getInstance(MemoizedSampleClass.class);
+        assertTrue(ScopedProxies.isScopedProxy(proxy));
+
+        final MemoizedSampleClass resolved = ScopedProxies.resolve(proxy);
+        assertFalse(ScopedProxies.isScopedProxy(resolved));
+        assertSame(resolved, ScopedProxies.resolve(resolved));
+
+        final CompletableFuture<Integer> pipeline = CompletableFuture
+                .supplyAsync(() -> resolved.idempotentMethod("a"));
+        scope.reset();
+        assertEquals(1, pipeline.get().intValue());
+        assertEquals(1, resolved.calls());
+        assertEquals(0, proxy.calls());
+    }
+
+    @Test
+    public void testResolveAsyncDefersLookup() throws Exception {
+        final ResettableScope scope = new ResettableScope();
+        final Injector injector = Guice.createInjector(new AbstractModule() {
+
+            @Override
+            protected void configure() {
+                ScopedProxyBinder.using(binder())
+                        .bind(MemoizedSampleClass.class)
+                        .to(MemoizedSampleClassImpl.class)
+                        .in(scope);
+            }
+        });
+
+        final MemoizedSampleClass proxy = injector.getInstance(MemoizedSampleClass.class);
+        final List<Runnable> tasks = new ArrayList<>();
+        final AtomicInteger transfers = new AtomicInteger();
+        final CompletableFuture<MemoizedSampleClass> stage = ScopedProxies
+                .resolveAsync(proxy, tasks::add, callable -> {
+                    transfers.incrementAndGet();
+                    return callable;
+                })
+                .toCompletableFuture();
+
+        // the scope is captured immediately but the object is resolved later
+        assertEquals(1, transfers.get());
+        assertFalse(stage.isDone());
+        assertEquals(1, tasks.size());
+
+        proxy.idempotentMethod("a");
+        scope.reset();
+        tasks.forEach(Runnable::run);
+        final MemoizedSampleClass resolved = stage.get();
+        assertFalse(ScopedProxies.isScopedProxy(resolved));
+        assertEquals(0, resolved.calls());
+        assertSame(resolved, ScopedProxies.resolve(proxy));
+    }
+
+    @Test
+    public void testResolveAsyncNoProxy() throws Exception {
+        final SampleClass object = new SampleClassImpl();
+        assertSame(object, ScopedProxies.resolveAsync(object, Runnable::run,
+                callable -> {
+                    throw new AssertionError("no scope to transfer");
+                }).toCompletableFuture().get());
+    }
+
+    @Test
+    public void testCompactLayout() throws Exception {
+        final ResettableScope scope = new ResettableScope();
+        final Injector injector = Guice.createInjector(new AbstractModule() {
+
+            @Override
+            protected void configure() {
+                ScopedProxyBinder.using(binder())
+                        .andCompactLayout()
+                        .bind(MemoizedSampleClass.class)
+                        .to(MemoizedSampleClassImpl.class)
+                        .in(scope);
+            }
+        });
+
+        final MemoizedSampleClass proxy = injector.getInstance(MemoizedSampleClass.class);
+        assertFalse(proxy instanceof Factory);
+        assertTrue(ScopedProxies.isScopedProxy(proxy));
+        assertEquals(1, proxy.idempotentMethod("a"));
+        assertEquals(1, proxy.idempotentMethod("a"));
+        assertEquals(1, ScopedProxies.resolve(proxy).calls());
+
+        scope.reset();
+        assertEquals(0, proxy.calls());
+    }
+
+    public static class CountingSampleClassImpl implements ThrowingSampleClass {
+        private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+        public CountingSampleClassImpl() {
+            INSTANCES.incrementAndGet();
+        }
+
+        @Override
+        public void fail() {
+            throw new IllegalStateException();
+        }
+    }
+
+    @Test
+    public void testWarmUpDoesNotCallTarget() throws Exception {
+        final Injector injector = Guice.createInjector(new AbstractModule() {
+
+            @Override
+            protected void configure() {
+                ScopedProxyBinder.using(binder())
+                        .bind(ThrowingSampleClass.class)
+                        .to(CountingSampleClassImpl.class);
+                ScopedProxyBinder.using(binder())
+                        .bind(CombinedSampleClass.class)
+                        .to(CombinedSampleClassImpl.class);
+                ScopedProxyBinder.using(binder())
+                        .bind(PrefetchedSampleClass.class)
+                        .to(PrefetchedSampleClassImpl.class);
+                ScopedProxyBinder.using(binder())
+                        .bind(ConcreteSampleClassWithCtor.class)
+                        .to(ConcreteSampleClassWithCtor.class);
+            }
+        });
+
+        final int instancesBefore = CountingSampleClassImpl.INSTANCES.get();
+        final long invocations = ScopedProxyBinder.warmUp(injector, 100);
+        assertEquals(instancesBefore, CountingSampleClassImpl.INSTANCES.get());
+        // one method each for ThrowingSampleClass and PrefetchedSampleClass, none for
+        // CombinedSampleClass and the concrete class is skipped
+        assertEquals(100 * 2, invocations);
+    }
+
+    public static interface CombinedSampleClass extends SampleClass, OtherSampleClass {
+
+    }
+
+    public static class CombinedSampleClassImpl implements CombinedSampleClass {
+
+    }
+
+    @Test
+    public void testBindWithAliases() throws Exception {
+        final Injector injector = Guice.createInjector(new AbstractModule() {
+
+            @Override
+            protected void configure() {
+                ScopedProxyBinder.using(binder())
+                        .bind(Key.get(CombinedSampleClass.class), Arrays.asList(
+                                Key.get(SampleClass.class),
+                                Key.get(OtherSampleClass.class)))
+                        .to(CombinedSampleClassImpl.class);
+            }
+        });
+
+        final CombinedSampleClass proxy = injector.getInstance(CombinedSampleClass.class);
+        assertTrue(ScopedProxies.isScopedProxy(proxy));
+        assertNotEquals(proxy.hashCode(), proxy.hashCode());
+        assertSame(proxy, injector.getInstance(SampleClass.class));
+        assertSame(proxy, injector.getInstance(OtherSampleClass.class));
+    }
+
+    @Test
+    public void testChildInjectorsReuseProxyClass() throws Exception {
+        final Injector parent = Guice.createInjector();
+        final Module childModule = new AbstractModule() {
+
+            @Override
+            protected void configure() {
+                ScopedProxyBinder.using(binder())
+                        .bind(SampleClass.class)
+                        .to(SampleClassImpl.class);
+            }
+        };
+
+        final SampleClass first = parent.createChildInjector(childModule)
+                .getInstance(SampleClass.class);
+        assertTrue(InstanceBuilder.cachedProxyClasses(SampleClass.class)
+                .contains(first.getClass()));
+        final SampleClass second = parent.createChildInjector(childModule)
+                .getInstance(SampleClass.class);
+        assertNotSame(first, second);
+        assertSame(first.getClass(), second.getClass());
+        // each child binds its own provider
+        assertNotSame(InstanceBuilder.getCallbacks(first)[0],
+                InstanceBuilder.getCallbacks(second)[0]);
+        assertNotEquals(second.hashCode(), second.hashCode());
+    }
+
+    @Test
+    public void testPrivateModule() throws Exception {
+        final Injector injector = Guice.createInjector(new PrivateModule() {
+
+            @Override
+            protected void configure() {
+                ScopedProxyBinder.using(binder())
+                        .bind(SampleClass.class)
+                        .to(SampleClassImpl.class);
+                expose(SampleClass.class);
+            }
+        });
+
+        final SampleClass sampleClass = injector.getInstance(SampleClass.class);
+        assertTrue(ScopedProxies.isScopedProxy(sampleClass));
+        assertNotEquals(sampleClass.hashCode(), sampleClass.hashCode());
+    }
+
+    public static class SetHolder {
+        @Inject
+        Set<SampleClass> set;
+        @Inject
+        Map<String, SampleClass> map;
+    }
+
+    @Test
+    public void testAddToSetAndMap() throws Exception {
+        final ResettableScope scope = new ResettableScope();
+        final Injector injector = Guice.createInjector(new AbstractModule() {
+
+            @Override
+            protected void configure() {
+                bind(SetHolder.class).in(Singleton.class);
+                ScopedProxyBinder.using(binder())
+                        .addToSet(SampleClass.class)
+                        .to(SampleClassImpl.class)
+                        .in(scope);
+                ScopedProxyBinder.using(binder())
+                        .addToSet(SampleClass.class)
+                        .to(SampleClassImpl.class)
+                        .in(scope);
+                ScopedProxyBinder.using(binder())
+                        .addToMap(String.class, SampleClass.class, "a")
+                        .to(SampleClassImpl.class)
+                        .in(scope);
+            }
+        });
+
+        final SetHolder holder = injector.getInstance(SetHolder.class);
+        assertEquals(2, holder.set.size());
+        for (final SampleClass element : holder.set) {
+            assertTrue(ScopedProxies.isScopedProxy(element));
+        }
+        final SampleClass value = holder.map.get("a");
+        assertTrue(ScopedProxies.isScopedProxy(value));
+
+        final SampleClass before = ScopedProxies.resolve(value);
+        assertSame(before, ScopedProxies.resolve(value));
+        scope.reset();
+        assertNotSame(before, ScopedProxies.resolve(value));
+    }
+
+    /** Scope which can only provide objects while it is active. */
+    private static class ActivatableScope implements Scope {
+        private final Map<Key<?>, Object> instances = new HashMap<>();
+        private boolean active;
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> Provider<T> scope(Key<T> key, Provider<T> unscoped) {
+            return () -> {
+                if (!this.active) {
+                    throw new OutOfScopeException("scope is not active");
+                }
+                return (T) this.instances.computeIfAbsent(key, k -> unscoped.get());
+            };
+        }
+    }
+
+    public static class ThrowingSetHolder {
+        @Inject
+        Set<ThrowingSampleClass> set;
+        @Inject
+        Map<String, ThrowingSampleClass> map;
+    }
+
+    @Test
+    public void testAddToSetAndMapOutsideOfScope() throws Exception {
+        final ActivatableScope scope = new ActivatableScope();
+        final Injector injector = Guice.createInjector(new AbstractModule() {
+
+            @Override
+            protected void configure() {
+                ScopedProxyBinder.using(binder())
+                        .addToSet(ThrowingSampleClass.class)
+                        .to(CountingSampleClassImpl.class)
+                        .in(scope);
+                ScopedProxyBinder.using(binder())
+                        .addToSet(ThrowingSampleClass.class)
+                        .to(CountingSampleClassImpl.class)
+                        .in(scope);
+                ScopedProxyBinder.using(binder())
+                        .addToMap(String.class, ThrowingSampleClass.class, "a")
+                        .to(CountingSampleClassImpl.class)
+                        .in(scope);
+            }
+        });
+
+        // building the collections must not resolve any of the scoped objects
+        final int instances = CountingSampleClassImpl.INSTANCES.get();
+        final ThrowingSetHolder holder = injector.getInstance(ThrowingSetHolder.class);
+        assertEquals(2, holder.set.size());
+        for (final ThrowingSampleClass element : holder.set) {
+            assertTrue(holder.set.contains(element));
+        }
+        final ThrowingSampleClass value = holder.map.get("a");
+        assertTrue(holder.map.containsValue(value));
+        assertEquals(instances, CountingSampleClassImpl.INSTANCES.get());
+
+        scope.active = true;
+        try {
+            value.fail();
+            fail("Expected IllegalStateException");
+        } catch (final IllegalStateException expected) {
+            // thrown by the scoped object
+        }
+        assertEquals(instances + 1, CountingSampleClassImpl.INSTANCES.get());
+    }
+
+    public static interface PrefetchedSampleClass {
+        Thread createdBy();
+    }
+
+    public static class PrefetchedSampleClassImpl implements PrefetchedSampleClass {
+        private final Thread createdBy = Thread.currentThread();
+
+        @Override
+        public Thread createdBy() {
+            return this.createdBy;
+        }
+    }
+
+    @Test
+    public void testPrefetch() throws Exception {
+        final ResettableScope scope = new ResettableScope();
+        final Injector injector = Guice.createInjector(new AbstractModule() {
+
+            @Override
+            protected void configure() {
+                ScopedProxyBinder.using(binder())
+                        .andPrefetch()
+                        .bind(PrefetchedSampleClass.class)
+                        .to(PrefetchedSampleClassImpl.class)
+                        .in(scope);
+            }
+        });
+
+        final PrefetchedSampleClass proxy = injector
+                .getInstance(PrefetchedSampleClass.class);
+        final ScopedProxyPrefetcher prefetcher = ScopedProxyPrefetcher
+                .forInjector(injector);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Thread prefetchThread = executor.submit(Thread::currentThread).get();
+            try (ScopedProxyPrefetcher.Prefetch prefetch = prefetcher.prefetch(executor,
+                    UnaryOperator.identity())) {
+                assertSame(prefetchThread, proxy.createdBy());
+                assertSame(prefetchThread, proxy.createdBy());
+            }
+
+            scope.reset();
+            assertSame(Thread.currentThread(), proxy.createdBy());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testPrefetchInChildInjector() throws Exception {
+        final ResettableScope scope = new ResettableScope();
+        final Key<PrefetchedSampleClass> childKey = Key.get(PrefetchedSampleClass.class,
+                Names.named("child"));
+        final Injector parent = Guice.createInjector(new AbstractModule() {
+
+            @Override
+            protected void configure() {
+                ScopedProxyBinder.using(binder())
+                        .andPrefetch()
+                        .bind(PrefetchedSampleClass.class)
+                        .to(PrefetchedSampleClassImpl.class)
+                        .in(scope);
+            }
+        });
+        final Injector child = parent.createChildInjector(new AbstractModule() {
+
+            @Override
+            protected void configure() {
+                ScopedProxyBinder.using(binder())
+                        .andPrefetch()
+                        .bind(childKey)
+                        .to(PrefetchedSampleClassImpl.class)
+                        .in(scope);
+            }
+        });
+
+        final PrefetchedSampleClass parentProxy = child
+                .getInstance(PrefetchedSampleClass.class);
+        final PrefetchedSampleClass childProxy = child.getInstance(childKey);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Thread prefetchThread = executor.submit(Thread::currentThread).get();
+            try (ScopedProxyPrefetcher.Prefetch prefetch = ScopedProxyPrefetcher
+                    .forInjector(child)
+                    .prefetch(executor, UnaryOperator.identity())) {
+                assertSame(prefetchThread, parentProxy.createdBy());
+                assertSame(prefetchThread, childProxy.createdBy());
+            }
+
+            scope.reset();
+            try (ScopedProxyPrefetcher.Prefetch prefetch = ScopedProxyPrefetcher
+                    .forInjector(parent)
+                    .prefetch(executor, UnaryOperator.identity())) {
+                assertSame(prefetchThread, parentProxy.createdBy());
+                assertSame(Thread.currentThread(), childProxy.createdBy());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public static class EarlyPrefetcher {
+        static RuntimeException failure;
+
+        @Inject
+        static void obtainPrefetcher(Injector injector) {
+            try {
+                ScopedProxyPrefetcher.forInjector(injector);
+            } catch (final RuntimeException e) {
+                failure = e;
+            }
+        }
+    }
+
+    @Test
+    public void testPrefetcherRequiresInitializedInjector() throws Exception {
+        Guice.createInjector(new AbstractModule() {
+
+            @Override
+            protected void configure() {
+                // static injection happens before the proxies are initialized
+                requestStaticInjection(EarlyPrefetcher.class);
+                ScopedProxyBinder.using(binder())
+                        .andPrefetch()
+                        .bind(PrefetchedSampleClass.class)
+                        .to(PrefetchedSampleClassImpl.class)
+                        .in(new ResettableScope());
+            }
+        });
+
+        assertTrue(EarlyPrefetcher.failure instanceof IllegalStateException);
+    }
+
+    @Test
+    public void testFailedPrefetchLeavesNothingPending() throws Exception {
+        final ResettableScope scope = new ResettableScope();
+        final Key<PrefetchedSampleClass> otherKey = Key.get(PrefetchedSampleClass.class,
+                Names.named("other"));
+        final Injector injector = Guice.createInjector(new AbstractModule() {
+
+            @Override
+            protected void configure() {
+                ScopedProxyBinder.using(binder())
+                        .andPrefetch()
+                        .bind(PrefetchedSampleClass.class)
+                        .to(PrefetchedSampleClassImpl.class)
+                        .in(scope);
+                ScopedProxyBinder.using(binder())
+                        .andPrefetch()
+                        .bind(otherKey)
+                        .to(PrefetchedSampleClassImpl.class)
+                        .in(scope);
+            }
+        });
+
+        final PrefetchedSampleClass proxy = injector
+                .getInstance(PrefetchedSampleClass.class);
+        final PrefetchedSampleClass otherProxy = injector.getInstance(otherKey);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // accepts the first task and rejects all further ones
+            final AtomicInteger submitted = new AtomicInteger();
+            final Executor failing = task -> {
+                if (submitted.incrementAndGet() > 1) {
+                    throw new RejectedExecutionException();
+                }
+                executor.execute(task);
+            };
+            try {
+                ScopedProxyPrefetcher.forInjector(injector)
+                        .prefetch(failing, UnaryOperator.identity());
+                fail("Expected RejectedExecutionException");
+            } catch (final RejectedExecutionException expected) {
+                // expected
+            }
+
+            // wait for the accepted task, then enter a new scope
+            executor.submit(() -> {}).get();
+            scope.reset();
+            assertSame(Thread.currentThread(), proxy.createdBy());
+            assertSame(Thread.currentThread(), otherProxy.createdBy());
+        } finally {
+            executor.shutdown();
+        }
+    }
 }
@@ -0,0 +1,191 @@
+package de.skuzzle.inject.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.inject.Inject;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+import com.google.inject.Singleton;
+
+public class ScopedProxyConcurrencyTest {
+
+    private static final int THREADS = 16;
+    private static final int ITERATIONS = 200;
+
+    public static interface SampleClass {
+        int value();
+    }
+
+    public static class SampleClassImpl implements SampleClass {
+
+        @Override
+        public int value() {
+            return 42;
+        }
+    }
+
+    public static interface OtherSampleClass {
+
+    }
+
+    public static class OtherSampleClassImpl implements OtherSampleClass {
+
+    }
+
+    public static class SingletonOtherSampleClassImpl implements OtherSampleClass {
+
+    }
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        this.executor = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.executor.shutdownNow();
+        this.executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    private static Module sampleModule() {
+        return new AbstractModule() {
+
+            @Override
+            protected void configure() {
+                ScopedProxyBinder.using(binder())
+                        .bind(SampleClass.class)
+                        .to(SampleClassImpl.class);
+            }
+        };
+    }
+
+    /** Hands the injector under construction to the reading threads. */
+    public static class Bootstrap {
+        private static final AtomicReference<Injector> INJECTOR = new AtomicReference<>();
+        private static volatile CountDownLatch bootstrapping;
+        private static volatile CountDownLatch readersDone;
+
+        @Inject
+        public Bootstrap(Injector injector) throws InterruptedException {
+            INJECTOR.set(injector);
+            bootstrapping.countDown();
+            // keep the injector under construction until all readers are done
+            readersDone.await(1, TimeUnit.MINUTES);
+        }
+    }
+
+    @Test
+    public void testConcurrentGetDuringInjectorCreation() throws Exception {
+        for (int round = 0; round < ITERATIONS / 10; ++round) {
+            Bootstrap.bootstrapping = new CountDownLatch(1);
+            Bootstrap.readersDone = new CountDownLatch(THREADS);
+
+            final List<Future<List<Object>>> results = new ArrayList<>();
+            for (int i = 0; i < THREADS; ++i) {
+                results.add(this.executor.submit(() -> {
+                    try {
+                        Bootstrap.bootstrapping.await();
+                        final Injector injector = Bootstrap.INJECTOR.get();
+                        final SampleClass proxy = injector.getInstance(SampleClass.class);
+                        final OtherSampleClass singleton = injector
+                                .getInstance(OtherSampleClass.class);
+                        assertEquals(42, proxy.value());
+                        return Arrays.asList(proxy, singleton);
+                    } finally {
+                        Bootstrap.readersDone.countDown();
+                    }
+                }));
+            }
+
+            final Injector injector = Guice.createInjector(sampleModule(),
+                    new AbstractModule() {
+
+                        @Override
+                        protected void configure() {
+                            bind(SingletonOtherSampleClassImpl.class)
+                                    .in(Singleton.class);
+                            ScopedProxyBinder.using(binder())
+                                    .andBypassSingletonTargets()
+                                    .bind(OtherSampleClass.class)
+                                    .to(SingletonOtherSampleClassImpl.class);
+                            bind(Bootstrap.class).asEagerSingleton();
+                        }
+                    });
+            final List<Object> expected = Arrays.asList(
+                    injector.getInstance(SampleClass.class),
+                    injector.getInstance(OtherSampleClass.class));
+            for (final Future<List<Object>> result : results) {
+                final List<Object> actual = result.get(1, TimeUnit.MINUTES);
+                assertSame(expected.get(0), actual.get(0));
+                assertSame(expected.get(1), actual.get(1));
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentGetDuringChildInjectorCreation() throws Exception {
+        final Injector parent = Guice.createInjector(sampleModule());
+        final SampleClass expected = parent.getInstance(SampleClass.class);
+
+        final List<Future<Void>> results = new ArrayList<>();
+        final CountDownLatch start = new CountDownLatch(1);
+        for (int i = 0; i < THREADS; ++i) {
+            final boolean createChildren = i % 2 == 0;
+            results.add(this.executor.submit(new Callable<Void>() {
+
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+                    for (int j = 0; j < ITERATIONS; ++j) {
+                        if (createChildren) {
+                            final Injector child = parent.createChildInjector(
+                                    new AbstractModule() {
+
+                                        @Override
+                                        protected void configure() {
+                                            ScopedProxyBinder.using(binder())
+                                                    .bind(OtherSampleClass.class)
+                                                    .to(OtherSampleClassImpl.class);
+                                        }
+                                    });
+                            assertSame(expected, child.getInstance(SampleClass.class));
+                            assertNotNull(child.getInstance(OtherSampleClass.class));
+                        } else {
+                            final SampleClass actual = parent
+                                    .getInstance(SampleClass.class);
+                            assertSame(expected, actual);
+                            actual.value();
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        start.countDown();
+        for (final Future<Void> result : results) {
+            result.get(1, TimeUnit.MINUTES);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package de.skuzzle.inject.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+public class ScopedProxyNativeImageTest {
+
+    public static interface NativeSampleClass {
+
+        String sample();
+    }
+
+    public static class NativeSampleClassImpl implements NativeSampleClass {
+
+        @Override
+        public String sample() {
+            return "sample";
+        }
+    }
+
+    public static class NativeSampleModule extends AbstractModule {
+
+        @Override
+        protected void configure() {
+            ScopedProxyBinder.using(binder())
+                    .bind(NativeSampleClass.class)
+                    .to(NativeSampleClassImpl.class);
+        }
+    }
+
+    public static interface OptInSampleClass {
+
+    }
+
+    public static class OptInSampleClassImpl implements OptInSampleClass {
+
+    }
+
+    public static class OptInSampleModule extends AbstractModule {
+
+        @Override
+        protected void configure() {
+            ScopedProxyBinder.using(binder())
+                    .bind(OptInSampleClass.class)
+                    .to(OptInSampleClassImpl.class);
+        }
+    }
+
+    /** Entry point of the native image that is built by the smoke test. */
+    public static class NativeSampleMain {
+
+        public static void main(String[] args) {
+            System.setProperty("guice_bytecode_gen_option", "DISABLED");
+            final NativeSampleClass instance = Guice.createInjector(
+                    new NativeSampleModule())
+                    .getInstance(NativeSampleClass.class);
+            System.out.println(instance.getClass().getName() + " " + instance.sample());
+        }
+    }
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @After
+    public void tearDown() {
+        System.clearProperty(ScopedProxyNativeImage.PREGENERATED_CLASSES_PROPERTY);
+    }
+
+    private static String generatedClassName(Path output, Class<?> type)
+            throws IOException {
+        final String fileName = type.getName().replace('.', '/')
+                + "$$ScopedProxyByGuice$$";
+        try (Stream<Path> files = Files.walk(output)) {
+            final List<String> classNames = files
+                    .map(output::relativize)
+                    .map(Path::toString)
+                    .map(path -> path.replace(File.separatorChar, '/'))
+                    .filter(path -> path.startsWith(fileName) && path.endsWith(".class"))
+                    .map(path -> path.substring(0, path.length() - ".class".length())
+                            .replace('/', '.'))
+                    .collect(Collectors.toList());
+            assertEquals(1, classNames.size());
+            return classNames.get(0);
+        }
+    }
+
+    @Test
+    public void testGenerate() throws Exception {
+        final Path output = this.folder.getRoot().toPath();
+        ScopedProxyNativeImage.main(new String[] {
+                output.toString(), NativeSampleModule.class.getName() });
+
+        final String proxyClassName = generatedClassName(output,
+                NativeSampleClass.class);
+        final String reflectConfig = new String(Files.readAllBytes(
+                output.resolve(ScopedProxyNativeImage.REFLECT_CONFIG)),
+                StandardCharsets.UTF_8);
+        assertTrue(reflectConfig.contains("\"" + proxyClassName + "\""));
+        assertTrue(reflectConfig.contains(
+                "\"" + NativeSampleClass.class.getName() + "\""));
+        assertTrue(reflectConfig.contains("\"java.lang.Object\""));
+
+        // the class generated at build time is reused at runtime
+        System.setProperty(ScopedProxyNativeImage.PREGENERATED_CLASSES_PROPERTY, "true");
+        final Injector injector = Guice.createInjector(new NativeSampleModule());
+        assertEquals(proxyClassName,
+                injector.getInstance(NativeSampleClass.class).getClass().getName());
+    }
+
+    @Test
+    public void testPregeneratedClassesAreOptIn() throws Exception {
+        final Path output = this.folder.getRoot().toPath();
+        ScopedProxyNativeImage.generate(output, new OptInSampleModule());
+
+        final String proxyClassName = generatedClassName(output,
+                OptInSampleClass.class);
+        final Injector injector = Guice.createInjector(new OptInSampleModule());
+        assertNotEquals(proxyClassName,
+                injector.getInstance(OptInSampleClass.class).getClass().getName());
+    }
+
+    @Test
+    public void testNativeImageSmoke() throws Exception {
+        Assume.assumeTrue("native-image is not available", isNativeImageAvailable());
+
+        final Path output = this.folder.newFolder("proxies").toPath();
+        ScopedProxyNativeImage.generate(output, new NativeSampleModule());
+        final String proxyClassName = generatedClassName(output,
+                NativeSampleClass.class);
+
+        // Guice instantiates the module and the implementation reflectively
+        final Path guiceConfig = output
+                .resolve("META-INF/native-image/smoke/reflect-config.json");
+        Files.createDirectories(guiceConfig.getParent());
+        Files.write(guiceConfig, Arrays.asList(
+                "[",
+                reflectiveType(NativeSampleModule.class) + ",",
+                reflectiveType(NativeSampleClassImpl.class),
+                "]"), StandardCharsets.UTF_8);
+
+        final Path executable = this.folder.getRoot().toPath().resolve("sample");
+        run(Arrays.asList("native-image", "--no-fallback",
+                "-cp", output + File.pathSeparator + System.getProperty("java.class.path"),
+                "-o", executable.toString(),
+                NativeSampleMain.class.getName()), 30);
+
+        final List<String> lines = run(Arrays.asList(executable.toString()), 1);
+        assertEquals(Arrays.asList(proxyClassName + " sample"), lines);
+    }
+
+    private static String reflectiveType(Class<?> type) {
+        return String.format("  {\"name\": \"%s\", \"allDeclaredConstructors\": true, "
+                + "\"allDeclaredMethods\": true, \"allDeclaredFields\": true}",
+                type.getName());
+    }
+
+    private static boolean isNativeImageAvailable() {
+        try {
+            return new ProcessBuilder("native-image", "--version")
+                    .redirectErrorStream(true)
+                    .start()
+                    .waitFor() == 0;
+        } catch (final IOException | InterruptedException e) {
+            return false;
+        }
+    }
+
+    private static List<String> run(List<String> command, int timeoutMinutes)
+            throws Exception {
+        final Process process = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .start();
+        final List<String> lines;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                process.getInputStream(), StandardCharsets.UTF_8))) {
+            lines = reader.lines().collect(Collectors.toList());
+        }
+        assertTrue("timeout: " + command,
+                process.waitFor(timeoutMinutes, TimeUnit.MINUTES));
+        assertEquals(String.join(System.lineSeparator(), lines),
+                0, process.exitValue());
+        return lines;
+    }
+}
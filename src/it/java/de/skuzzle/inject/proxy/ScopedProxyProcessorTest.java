@@ -0,0 +1,99 @@
+package de.skuzzle.inject.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ScopedProxyProcessorTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private Path writeSource(String className, boolean annotated) throws IOException {
+        final Path source = this.folder.getRoot().toPath()
+                .resolve("src/sample/" + className + ".java");
+        Files.createDirectories(source.getParent());
+        Files.write(source, Arrays.asList(
+                "package sample;",
+                annotated
+                        ? "@de.skuzzle.inject.proxy.ScopedProxy(scope = javax.inject.Singleton.class)"
+                        : "",
+                "public class " + className + " {}"), StandardCharsets.UTF_8);
+        return source;
+    }
+
+    private Path compile(Path... sources) {
+        final Path output = this.folder.getRoot().toPath().resolve("classes");
+        final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        final String classPath = output + System.getProperty("path.separator")
+                + System.getProperty("java.class.path");
+        final List<String> args = Arrays.stream(sources)
+                .map(Path::toString)
+                .collect(Collectors.toList());
+        args.addAll(0, Arrays.asList(
+                "-d", output.toString(),
+                "-classpath", classPath,
+                "-processor", ScopedProxyProcessor.class.getName()));
+        output.toFile().mkdirs();
+        assertEquals(0, compiler.run(null, null, null, args.toArray(new String[0])));
+        return output;
+    }
+
+    private List<String> indexedTypes(Path output) throws IOException {
+        try (Reader reader = Files.newBufferedReader(
+                output.resolve(ScopedProxyIndex.LOCATION), StandardCharsets.UTF_8)) {
+            return ScopedProxyIndex.read(reader).stream()
+                    .map(entry -> entry.implementationType)
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    @Test
+    public void testIncrementalCompilationKeepsEntries() throws Exception {
+        final Path first = writeSource("First", true);
+        final Path second = writeSource("Second", true);
+        final Path output = compile(first, second);
+        assertEquals(Arrays.asList("sample.First", "sample.Second"),
+                indexedTypes(output));
+
+        // only recompile one of the types
+        compile(writeSource("First", true));
+        assertEquals(Arrays.asList("sample.First", "sample.Second"),
+                indexedTypes(output));
+    }
+
+    @Test
+    public void testIncrementalCompilationRemovesUnannotatedType() throws Exception {
+        final Path output = compile(writeSource("First", true),
+                writeSource("Second", true));
+
+        compile(writeSource("Second", false));
+        assertEquals(Arrays.asList("sample.First"), indexedTypes(output));
+    }
+
+    @Test
+    public void testIncrementalCompilationRemovesDeletedType() throws Exception {
+        final Path output = compile(writeSource("First", true),
+                writeSource("Second", true));
+        assertTrue(Files.deleteIfExists(output.resolve("sample/Second.class")));
+
+        compile(writeSource("First", true));
+        assertEquals(Arrays.asList("sample.First"), indexedTypes(output));
+    }
+}
@@ -0,0 +1,31 @@
+package de.skuzzle.inject.proxy.sample;
+
+import de.skuzzle.inject.proxy.Idempotent;
+
+/**
+ * Sample with a protected {@link Idempotent} method which is declared outside of the
+ * extension's package so that it can not be invoked reflectively without making it
+ * accessible first.
+ */
+public class ProtectedIdempotentSampleClass {
+    private int calls;
+
+    @Idempotent
+    protected int protectedIdempotent() {
+        return ++this.calls;
+    }
+
+    public int calls() {
+        return this.calls;
+    }
+
+    /**
+     * Calls the protected method on the given object, which might be a proxy.
+     *
+     * @param object The object.
+     * @return The result of the protected method.
+     */
+    public static int callProtectedIdempotent(ProtectedIdempotentSampleClass object) {
+        return object.protectedIdempotent();
+    }
+}
@@ -0,0 +1,36 @@
+package de.skuzzle.inject.proxy;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a method of a type bound as scoped proxy as idempotent. Calls to such methods
+ * through the proxy are only delegated once per scoped object and distinct arguments.
+ * Subsequent calls with equal arguments are answered from a cache which is discarded as
+ * soon as the scoped object becomes unreachable. Thus, for a request scoped object, the
+ * method would usually be called only once per request and arguments. Cached results
+ * are referenced weakly, so a result that is not referenced anywhere else might be
+ * computed again after it has been garbage collected.
+ * <p>
+ * The annotation must be present on the method as declared by the type that is bound as
+ * scoped proxy. Arguments are compared using their {@code equals} method. Methods that
+ * throw an exception are not cached.
+ *
+ * <pre>
+ * public interface TenantContext {
+ *     &#64;Idempotent
+ *     Tenant getCurrentTenant();
+ * }
+ * </pre>
+ *
+ * @author Simon Taddiken
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Idempotent {
+
+}
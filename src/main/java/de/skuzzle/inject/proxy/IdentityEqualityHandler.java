@@ -0,0 +1,40 @@
+package de.skuzzle.inject.proxy;
+
+import java.lang.reflect.Method;
+
+import net.sf.cglib.proxy.InvocationHandler;
+
+/**
+ * Callback for {@link Object#equals(Object)} and {@link Object#hashCode()} of proxies
+ * which are elements of collections. Proxies are compared by identity instead of
+ * delegating to the scoped object, so that building a set or map of proxies does not
+ * require their scopes to be active.
+ *
+ * @author Simon Taddiken
+ */
+final class IdentityEqualityHandler implements InvocationHandler {
+
+    static final IdentityEqualityHandler INSTANCE = new IdentityEqualityHandler();
+
+    private IdentityEqualityHandler() {
+        // hidden
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+        if (args.length == 0) {
+            return System.identityHashCode(proxy);
+        }
+        return proxy == args[0];
+    }
+
+    /** Whether the given method is {@code equals(Object)} or {@code hashCode()}. */
+    static boolean isEqualityMethod(Method method) {
+        if (method.getName().equals("hashCode")) {
+            return method.getParameterCount() == 0;
+        }
+        return method.getName().equals("equals")
+                && method.getParameterCount() == 1
+                && method.getParameterTypes()[0] == Object.class;
+    }
+}
@@ -1,19 +1,41 @@
 package de.skuzzle.inject.proxy;
 
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import com.google.common.base.Preconditions;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.google.inject.Injector;
 import com.google.inject.Provider;
 import com.google.inject.internal.Errors;
 
-import net.sf.cglib.core.DefaultNamingPolicy;
+import org.objectweb.asm.ClassReader;
+
+import net.sf.cglib.core.ClassGenerator;
+import net.sf.cglib.core.DefaultGeneratorStrategy;
 import net.sf.cglib.core.NamingPolicy;
+import net.sf.cglib.core.Predicate;
 import net.sf.cglib.proxy.Callback;
 import net.sf.cglib.proxy.CallbackFilter;
 import net.sf.cglib.proxy.Enhancer;
 import net.sf.cglib.proxy.Factory;
-import net.sf.cglib.proxy.InvocationHandler;
+import net.sf.cglib.proxy.NoOp;
 
 /**
  * Builds a proxy instance which is backed by a scoped provider.
@@ -24,39 +46,94 @@ import net.sf.cglib.proxy.InvocationHandler;
 final class InstanceBuilder<T> {
 
     /**
-     * The unique callback index to which each method in the proxy object is mapped.
+     * The callback index to which each delegated method in the proxy object is mapped.
      */
     private static final int CALLBACK_INDEX = 0;
 
-    /** Maps all methods to index {@link #CALLBACK_INDEX}. */
-    private static final CallbackFilter ZERO_CALLBACK_FILTER = method -> CALLBACK_INDEX;
+    /** Infix of the names of all generated proxy classes. */
+    private static final String CLASS_NAME_INFIX = "$$ScopedProxyByGuice";
+
+    /** Suffix of the names of proxy classes that only intercept public methods. */
+    private static final String PUBLIC_METHODS_ONLY_SUFFIX = "$$Public";
+
+    /** Suffix of the names of proxy classes with compact layout. */
+    private static final String COMPACT_SUFFIX = "$$Compact";
+
+    /** Suffix of the names of proxy classes that are compared by identity. */
+    private static final String IDENTITY_SUFFIX = "$$Identity";
 
-    /** Naming strategy for our enhancer */
-    private static final NamingPolicy ENHANCER_NAMING = new DefaultNamingPolicy() {
+    /** Separates the fingerprint of the proxy class from the rest of its name. */
+    private static final String FINGERPRINT_SEPARATOR = "$$";
+
+    /** Prefix of the fields in which cglib stores the callbacks of a proxy object. */
+    private static final String CALLBACK_FIELD_PREFIX = "CGLIB$CALLBACK_";
+
+    /** Name of the field in which cglib tracks whether callbacks have been bound. */
+    private static final String BOUND_FIELD = "CGLIB$BOUND";
+
+    /**
+     * The callback fields of compact proxy classes ordered by callback index. Empty for
+     * all other classes.
+     */
+    private static final ClassValue<Field[]> CALLBACK_FIELDS = new ClassValue<Field[]>() {
 
         @Override
-        protected String getTag() {
-            return "ByGuice";
-        };
+        protected Field[] computeValue(Class<?> type) {
+            if (!type.getName().contains(CLASS_NAME_INFIX)
+                    || Factory.class.isAssignableFrom(type)) {
+                return new Field[0];
+            }
+            final List<Field> fields = new ArrayList<>();
+            for (int i = 0;; ++i) {
+                try {
+                    final Field field = type.getDeclaredField(CALLBACK_FIELD_PREFIX + i);
+                    field.setAccessible(true);
+                    fields.add(field);
+                } catch (final NoSuchFieldException e) {
+                    return fields.toArray(new Field[fields.size()]);
+                }
+            }
+        }
+    };
+
+    /**
+     * Proxy classes by their name (without fingerprint) for each proxied type. Allows to
+     * reuse proxy classes across injectors (e.g. for child injectors) without ever
+     * consulting cglib or a class loader again.
+     * <p>
+     * Only the class, and with it the routing of its methods to the callback indices,
+     * is shared. The callbacks themselves are bound to the provider of a single
+     * injector, so every injector (including each child injector) still creates its
+     * own callbacks for each proxy. The callbacks of a parent injector are not reused.
+     */
+    private static final ClassValue<ConcurrentMap<String, Class<?>>> PROXY_CLASSES = new ClassValue<ConcurrentMap<String, Class<?>>>() {
 
         @Override
-        public String getClassName(String prefix, String source, Object key,
-                net.sf.cglib.core.Predicate names) {
-            return super.getClassName(prefix, "ScopedProxy", key, names);
-        };
+        protected ConcurrentMap<String, Class<?>> computeValue(Class<?> type) {
+            return new ConcurrentHashMap<>();
+        }
+    };
+
+    /** Methods annotated with {@link Idempotent} for each proxied type. */
+    private static final ClassValue<Set<Method>> IDEMPOTENT_METHODS = new ClassValue<Set<Method>>() {
 
+        @Override
+        protected Set<Method> computeValue(Class<?> type) {
+            return findIdempotentMethods(type);
+        }
     };
 
-    private final Enhancer enhancer;
+    private final Class<T> superType;
+    private Provider<T> provider;
     private Callback dispatcher;
     private ConstructionStrategy constructionStrategy = ConstructionStrategies.NULL_VALUES;
+    private boolean publicMethodsOnly;
+    private boolean compact;
+    private boolean identityEquality;
+    private ProxyClassCollector collector;
 
     private InstanceBuilder(Class<T> superType) {
-        this.enhancer = new Enhancer();
-        this.enhancer.setSuperclass(superType);
-        this.enhancer.setUseFactory(true);
-        this.enhancer.setCallbackFilter(ZERO_CALLBACK_FILTER);
-        this.enhancer.setNamingPolicy(ENHANCER_NAMING);
+        this.superType = superType;
     }
 
     /**
@@ -74,7 +151,11 @@ final class InstanceBuilder<T> {
 
     /**
      * Specifies the scoped provider. Every method call on the object created by this
-     * builder will be delegated to the object returned by the given provider.
+     * builder will be delegated to the object returned by the given provider. The
+     * generated proxy invokes methods directly on that object without using reflection.
+     * Protected methods are the exception: cglib's {@code Dispatcher} can not override
+     * them, so they are delegated reflectively. Results of methods annotated with
+     * {@link Idempotent} are cached per object returned by the provider.
      * <p>
      * This method overrides the callback set by {@link #withCallback(Callback)}.
      *
@@ -84,9 +165,8 @@ final class InstanceBuilder<T> {
      */
     public InstanceBuilder<T> dispatchTo(Provider<T> provider) {
         Preconditions.checkNotNull(provider, "provider");
-        final InvocationHandler callback = (proxy, method, args) -> method
-                .invoke(provider.get(), args);
-        this.dispatcher = callback;
+        this.provider = provider;
+        this.dispatcher = new ProviderDispatcher(provider);
         return this;
     }
 
@@ -103,6 +183,7 @@ final class InstanceBuilder<T> {
      */
     public InstanceBuilder<T> withCallback(Callback callback) {
         Preconditions.checkNotNull(callback, "callback");
+        this.provider = null;
         this.dispatcher = callback;
         return this;
     }
@@ -121,6 +202,60 @@ final class InstanceBuilder<T> {
         return this;
     }
 
+    /**
+     * Restricts the created proxy to the public methods of the proxied type. Methods
+     * with any other visibility will not be overridden by the generated class and thus
+     * will not be delegated. Calling them on the proxy executes the inherited
+     * implementation on the proxy object itself.
+     * <p>
+     * For concrete classes with many non-public methods this considerably reduces the
+     * size of the generated class.
+     *
+     * @return Builder object for further configuration.
+     */
+    public InstanceBuilder<T> interceptPublicMethodsOnly() {
+        this.publicMethodsOnly = true;
+        return this;
+    }
+
+    /**
+     * Creates a proxy class which does not implement cglib's {@link Factory} interface.
+     * This reduces the size of the generated class. The callbacks are directly written
+     * to the created object instead.
+     *
+     * @return Builder object for further configuration.
+     */
+    public InstanceBuilder<T> compactLayout() {
+        this.compact = true;
+        return this;
+    }
+
+    /**
+     * Implements {@link Object#equals(Object)} and {@link Object#hashCode()} of the
+     * created proxy based on its identity instead of delegating them. This allows to
+     * put the proxy into hash based collections without resolving the scoped object.
+     *
+     * @return Builder object for further configuration.
+     */
+    public InstanceBuilder<T> identityEquality() {
+        this.identityEquality = true;
+        return this;
+    }
+
+    /**
+     * Reports the bytes of the generated proxy class to the given collector. This
+     * always generates a fresh class instead of reusing a class that has been generated
+     * or loaded before.
+     *
+     * @param collector The collector.
+     * @return Builder object for further configuration.
+     */
+    public InstanceBuilder<T> recordingTo(ProxyClassCollector collector) {
+        Preconditions.checkNotNull(collector, "collector");
+        this.collector = collector;
+        return this;
+    }
+
     /**
      * Creates the scoped proxy object using the given provider.
      *
@@ -132,15 +267,369 @@ final class InstanceBuilder<T> {
         Preconditions.checkNotNull(injector, "injector");
         Preconditions.checkState(this.dispatcher != null, "no provider set");
 
-        this.enhancer.setCallbackType(this.dispatcher.getClass());
-        final Class<T> enhancedClass = this.enhancer.createClass();
+        final List<Callback> callbacks = new ArrayList<>(4);
+        callbacks.add(this.dispatcher);
+        int noOpIndex = -1;
+        if (this.publicMethodsOnly || this.provider != null) {
+            noOpIndex = callbacks.size();
+            callbacks.add(NoOp.INSTANCE);
+        }
+
+        final Set<Method> idempotentMethods = this.provider == null
+                ? Collections.emptySet()
+                : IDEMPOTENT_METHODS.get(this.superType);
+        int memoizingIndex = -1;
+        if (!idempotentMethods.isEmpty()) {
+            memoizingIndex = callbacks.size();
+            callbacks.add(new MemoizingInvocationHandler(this.provider));
+        }
+        int protectedIndex = -1;
+        if (this.provider != null && !this.publicMethodsOnly) {
+            // the dispatcher does not override protected methods
+            protectedIndex = callbacks.size();
+            callbacks.add(new ProtectedMethodHandler(this.provider));
+        }
+        int identityIndex = -1;
+        if (this.identityEquality) {
+            identityIndex = callbacks.size();
+            callbacks.add(IdentityEqualityHandler.INSTANCE);
+        }
+
+        final ProxyCallbackFilter filter = new ProxyCallbackFilter(
+                this.publicMethodsOnly, noOpIndex, memoizingIndex, protectedIndex,
+                identityIndex, idempotentMethods);
+        final String variantName = proxyClassName(this.superType.getName());
+        final boolean reuse = this.provider != null && this.collector == null;
+        Class<T> enhancedClass = reuse
+                ? findCachedClass(variantName)
+                : null;
+        if (enhancedClass == null) {
+            // the fingerprint changes whenever the proxied type would result in a
+            // different proxy class
+            final String className = variantName + FINGERPRINT_SEPARATOR
+                    + fingerprint(filter, callbacks);
+            enhancedClass = reuse && ScopedProxyNativeImage.loadPregeneratedClasses()
+                    ? loadExistingClass(className, callbacks)
+                    : null;
+            if (enhancedClass == null) {
+                final Enhancer enhancer = new Enhancer();
+                enhancer.setSuperclass(this.superType);
+                enhancer.setUseFactory(!this.compact);
+                enhancer.setNamingPolicy(new ProxyNamingPolicy(className));
+                enhancer.setCallbackFilter(filter);
+                enhancer.setCallbackTypes(callbacks.stream()
+                        .map(Callback::getClass)
+                        .toArray(Class<?>[]::new));
+                if (this.collector != null) {
+                    enhancer.setUseCache(false);
+                    enhancer.setStrategy(new RecordingGeneratorStrategy(this.collector));
+                }
+                enhancedClass = enhancer.createClass();
+            }
+            if (reuse) {
+                PROXY_CLASSES.get(this.superType).putIfAbsent(variantName, enhancedClass);
+            }
+        }
+
         final Errors errors = new Errors();
         final T proxyInstance = this.constructionStrategy
                 .createInstance(enhancedClass, injector, errors);
 
         errors.throwProvisionExceptionIfErrorsExist();
-        final Factory factory = (Factory) proxyInstance;
-        factory.setCallback(CALLBACK_INDEX, this.dispatcher);
+        final Callback[] callbackArray = callbacks.toArray(
+                new Callback[callbacks.size()]);
+        if (this.compact) {
+            bindCallbacks(proxyInstance, callbackArray);
+        } else {
+            ((Factory) proxyInstance).setCallbacks(callbackArray);
+        }
         return proxyInstance;
     }
+
+    /**
+     * Returns the callbacks of the given proxy object.
+     *
+     * @param proxy The object.
+     * @return The callbacks or an empty array if the object is not a proxy created by
+     *         this class.
+     */
+    static Callback[] getCallbacks(Object proxy) {
+        if (proxy instanceof Factory) {
+            return ((Factory) proxy).getCallbacks();
+        }
+        final Field[] fields = CALLBACK_FIELDS.get(proxy.getClass());
+        final Callback[] callbacks = new Callback[fields.length];
+        try {
+            for (int i = 0; i < fields.length; ++i) {
+                callbacks[i] = (Callback) fields[i].get(proxy);
+            }
+        } catch (final IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+        return callbacks;
+    }
+
+    private static void bindCallbacks(Object proxy, Callback[] callbacks) {
+        final Field[] fields = CALLBACK_FIELDS.get(proxy.getClass());
+        Preconditions.checkState(fields.length == callbacks.length,
+                "unexpected callbacks in %s", proxy.getClass().getName());
+        try {
+            for (int i = 0; i < fields.length; ++i) {
+                fields[i].set(proxy, callbacks[i]);
+            }
+            // prevents cglib from looking up (non existing) thread local callbacks
+            final Field bound = proxy.getClass().getDeclaredField(BOUND_FIELD);
+            bound.setAccessible(true);
+            bound.setBoolean(proxy, true);
+        } catch (final ReflectiveOperationException e) {
+            throw new IllegalStateException(String.format(
+                    "Could not bind callbacks of %s", proxy.getClass().getName()), e);
+        }
+    }
+
+    /**
+     * Determines the deterministic name of the proxy class without its fingerprint.
+     * Proxies for types from the {@code java} packages are moved into another package
+     * just like cglib does.
+     */
+    private String proxyClassName(String prefix) {
+        final String packagePrefix = prefix.startsWith("java")
+                ? "$" + prefix
+                : prefix;
+        return packagePrefix + CLASS_NAME_INFIX
+                + (this.publicMethodsOnly ? PUBLIC_METHODS_ONLY_SUFFIX : "")
+                + (this.compact ? COMPACT_SUFFIX : "")
+                + (this.identityEquality ? IDENTITY_SUFFIX : "");
+    }
+
+    /**
+     * Returns the proxy classes which have been cached for the given proxied type.
+     *
+     * @param type The proxied type.
+     * @return The cached proxy classes.
+     */
+    static Collection<Class<?>> cachedProxyClasses(Class<?> type) {
+        return Collections.unmodifiableCollection(PROXY_CLASSES.get(type).values());
+    }
+
+    /** Looks up a proxy class with the given name that has been used before. */
+    @SuppressWarnings("unchecked")
+    private Class<T> findCachedClass(String className) {
+        return (Class<T>) PROXY_CLASSES.get(this.superType).get(className);
+    }
+
+    /**
+     * Hashes the callback types and the routing of every overridable method of the
+     * proxied type.
+     * Classes which have been generated at build time are thus only found at runtime if
+     * they still match the proxied type.
+     */
+    private String fingerprint(ProxyCallbackFilter filter, List<Callback> callbacks) {
+        final List<String> methods = new ArrayList<>();
+        for (final Class<?> type : typeHierarchy(this.superType)) {
+            for (final Method method : type.getDeclaredMethods()) {
+                // ignores members added by tools like code coverage agents
+                if (!method.isSynthetic() && !Modifier.isStatic(method.getModifiers())
+                        && !Modifier.isPrivate(method.getModifiers())) {
+                    methods.add(method + "=" + filter.accept(method));
+                }
+            }
+        }
+        Collections.sort(methods);
+
+        final Hasher hasher = Hashing.murmur3_32().newHasher();
+        for (final Callback callback : callbacks) {
+            hasher.putString(callback.getClass().getName(), StandardCharsets.UTF_8);
+        }
+        for (final String method : methods) {
+            hasher.putString(method, StandardCharsets.UTF_8);
+        }
+        return hasher.hash().toString();
+    }
+
+    /**
+     * Tries to load a proxy class with the given name that has either been generated
+     * before or that has been generated at build time.
+     */
+    @SuppressWarnings("unchecked")
+    private Class<T> loadExistingClass(String className, List<Callback> callbacks) {
+        final ClassLoader classLoader = this.superType.getClassLoader();
+        if (classLoader == null) {
+            return null;
+        }
+        try {
+            final Class<?> existing = Class.forName(className, false, classLoader);
+            return this.superType.isAssignableFrom(existing)
+                    && Factory.class.isAssignableFrom(existing) != this.compact
+                    && acceptsCallbacks(existing, callbacks)
+                            ? (Class<T>) existing
+                            : null;
+        } catch (final ClassNotFoundException e) {
+            return null;
+        }
+    }
+
+    /** Whether the callback fields of the given proxy class match the callbacks. */
+    private static boolean acceptsCallbacks(Class<?> proxyClass,
+            List<Callback> callbacks) {
+        for (int i = 0;; ++i) {
+            final Field field;
+            try {
+                field = proxyClass.getDeclaredField(CALLBACK_FIELD_PREFIX + i);
+            } catch (final NoSuchFieldException e) {
+                return i == callbacks.size();
+            }
+            if (i >= callbacks.size() || !field.getType().isInstance(callbacks.get(i))) {
+                return false;
+            }
+        }
+    }
+
+    private static Set<Method> findIdempotentMethods(Class<?> type) {
+        final Set<Method> result = new HashSet<>();
+        for (final Class<?> current : typeHierarchy(type)) {
+            for (final Method method : current.getDeclaredMethods()) {
+                if (method.isAnnotationPresent(Idempotent.class)) {
+                    result.add(method);
+                }
+            }
+        }
+        return Collections.unmodifiableSet(result);
+    }
+
+    /** The given type and all of its super classes and interfaces. */
+    static Set<Class<?>> typeHierarchy(Class<?> type) {
+        final Set<Class<?>> result = new LinkedHashSet<>();
+        final Deque<Class<?>> queue = new ArrayDeque<>();
+        queue.add(type);
+        while (!queue.isEmpty()) {
+            final Class<?> current = queue.poll();
+            if (!result.add(current)) {
+                continue;
+            }
+            if (current.getSuperclass() != null) {
+                queue.add(current.getSuperclass());
+            }
+            queue.addAll(Arrays.asList(current.getInterfaces()));
+        }
+        return result;
+    }
+
+    /**
+     * Names proxy classes deterministically so that classes generated at build time can
+     * be found again at runtime.
+     *
+     * @author Simon Taddiken
+     */
+    private static final class ProxyNamingPolicy implements NamingPolicy {
+
+        private final String className;
+
+        private ProxyNamingPolicy(String className) {
+            this.className = className;
+        }
+
+        @Override
+        public String getClassName(String prefix, String source, Object key,
+                Predicate names) {
+            // if the name is already taken, the class has been generated with a
+            // different configuration (e.g. a custom callback)
+            String name = this.className;
+            for (int index = 2; names.evaluate(name); ++index) {
+                name = this.className + "_" + index;
+            }
+            return name;
+        }
+    }
+
+    /**
+     * Reports the bytes of generated classes to a {@link ProxyClassCollector}.
+     *
+     * @author Simon Taddiken
+     */
+    private static final class RecordingGeneratorStrategy
+            extends DefaultGeneratorStrategy {
+
+        private final ProxyClassCollector collector;
+
+        private RecordingGeneratorStrategy(ProxyClassCollector collector) {
+            this.collector = collector;
+        }
+
+        @Override
+        public byte[] generate(ClassGenerator cg) throws Exception {
+            final byte[] bytes = super.generate(cg);
+            final String className = new ClassReader(bytes).getClassName()
+                    .replace('/', '.');
+            this.collector.addProxyClass(className, bytes);
+            return bytes;
+        }
+    }
+
+    /**
+     * Routes the methods of the proxy class to the callbacks created in
+     * {@link InstanceBuilder#create(Injector)}. Implements equals and hashCode so that
+     * cglib is able to reuse the generated classes.
+     *
+     * @author Simon Taddiken
+     */
+    private static final class ProxyCallbackFilter implements CallbackFilter {
+
+        private final boolean publicMethodsOnly;
+        private final int noOpIndex;
+        private final int memoizingIndex;
+        private final int protectedIndex;
+        private final int identityIndex;
+        private final Set<Method> idempotentMethods;
+
+        private ProxyCallbackFilter(boolean publicMethodsOnly, int noOpIndex,
+                int memoizingIndex, int protectedIndex, int identityIndex,
+                Set<Method> idempotentMethods) {
+            this.publicMethodsOnly = publicMethodsOnly;
+            this.noOpIndex = noOpIndex;
+            this.memoizingIndex = memoizingIndex;
+            this.protectedIndex = protectedIndex;
+            this.identityIndex = identityIndex;
+            this.idempotentMethods = idempotentMethods;
+        }
+
+        @Override
+        public int accept(Method method) {
+            if (this.identityIndex >= 0
+                    && IdentityEqualityHandler.isEqualityMethod(method)) {
+                return this.identityIndex;
+            } else if (this.publicMethodsOnly
+                    && !Modifier.isPublic(method.getModifiers())) {
+                return this.noOpIndex;
+            } else if (this.idempotentMethods.contains(method)) {
+                return this.memoizingIndex;
+            } else if (this.protectedIndex >= 0
+                    && Modifier.isProtected(method.getModifiers())) {
+                // JDK methods like AbstractList.removeRange can not be made accessible
+                return method.getDeclaringClass().getName().startsWith("java.")
+                        ? this.noOpIndex
+                        : this.protectedIndex;
+            }
+            return CALLBACK_INDEX;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(this.publicMethodsOnly, this.noOpIndex,
+                    this.memoizingIndex, this.protectedIndex, this.identityIndex,
+                    this.idempotentMethods);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj == this || obj instanceof ProxyCallbackFilter
+                    && this.publicMethodsOnly == ((ProxyCallbackFilter) obj).publicMethodsOnly
+                    && this.noOpIndex == ((ProxyCallbackFilter) obj).noOpIndex
+                    && this.memoizingIndex == ((ProxyCallbackFilter) obj).memoizingIndex
+                    && this.protectedIndex == ((ProxyCallbackFilter) obj).protectedIndex
+                    && this.identityIndex == ((ProxyCallbackFilter) obj).identityIndex
+                    && this.idempotentMethods.equals(
+                            ((ProxyCallbackFilter) obj).idempotentMethods);
+        }
+    }
 }
@@ -0,0 +1,86 @@
+package de.skuzzle.inject.proxy;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.inject.Provider;
+
+import net.sf.cglib.proxy.InvocationHandler;
+
+/**
+ * Callback for methods annotated with {@link Idempotent}. Results are cached per object
+ * returned by the scoped provider and per method arguments. The scoped objects are
+ * referenced weakly (and compared by identity) so that the cached results are
+ * discarded together with the scoped object.
+ * <p>
+ * The results are referenced weakly as well. A result might reference its scoped object
+ * (e.g. by returning {@code this} or a lambda capturing it) which would otherwise keep
+ * the scoped object reachable forever. Thus a result which is not referenced anywhere
+ * else might be computed again after it has been garbage collected.
+ *
+ * @author Simon Taddiken
+ */
+final class MemoizingInvocationHandler implements InvocationHandler {
+
+    /** Placeholder for caching null results. */
+    private static final Object NULL = new Object();
+
+    private final Provider<?> provider;
+    private final Cache<Object, Cache<List<Object>, Object>> results;
+
+    MemoizingInvocationHandler(Provider<?> provider) {
+        this.provider = provider;
+        this.results = CacheBuilder.newBuilder()
+                .weakKeys()
+                .build();
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        final Object target = this.provider.get();
+        final Cache<List<Object>, Object> targetResults;
+        try {
+            targetResults = this.results.get(target, () -> CacheBuilder.newBuilder()
+                    .weakValues()
+                    .build());
+        } catch (final ExecutionException e) {
+            throw e.getCause();
+        }
+
+        final List<Object> key = cacheKey(method, args);
+        final Object cached = targetResults.getIfPresent(key);
+        if (cached != null) {
+            return cached == NULL ? null : cached;
+        }
+
+        // cglib passes the same method object for every call
+        if (!method.isAccessible()) {
+            method.setAccessible(true);
+        }
+        final Object result;
+        try {
+            result = method.invoke(target, args);
+        } catch (final InvocationTargetException e) {
+            throw e.getCause();
+        }
+        targetResults.asMap().putIfAbsent(key, result == null ? NULL : result);
+        return result;
+    }
+
+    private static List<Object> cacheKey(Method method, Object[] args) {
+        if (args == null || args.length == 0) {
+            return Collections.singletonList(method);
+        }
+        final List<Object> key = new ArrayList<>(args.length + 1);
+        key.add(method);
+        Collections.addAll(key, args);
+        return key;
+    }
+}
@@ -0,0 +1,42 @@
+package de.skuzzle.inject.proxy;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import com.google.inject.Provider;
+
+import net.sf.cglib.proxy.InvocationHandler;
+
+/**
+ * Callback for protected methods. cglib does not generate {@link ProviderDispatcher}
+ * based delegation for protected methods because they can not be called on another
+ * object from within the proxy class. Such methods are thus invoked reflectively on the
+ * object returned by the scoped provider. Protected methods declared by the JDK (like
+ * {@code AbstractList.removeRange}) are never passed to this handler because they can
+ * not be made accessible.
+ *
+ * @author Simon Taddiken
+ */
+final class ProtectedMethodHandler implements InvocationHandler {
+
+    private final Provider<?> provider;
+
+    ProtectedMethodHandler(Provider<?> provider) {
+        this.provider = provider;
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        final Object target = this.provider.get();
+        // cglib passes the same method object for every call
+        if (!method.isAccessible()) {
+            method.setAccessible(true);
+        }
+        try {
+            return method.invoke(target, args);
+        } catch (final InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package de.skuzzle.inject.proxy;
+
+import com.google.inject.Provider;
+
+import net.sf.cglib.proxy.Dispatcher;
+
+/**
+ * Callback which resolves the target object of each method call from the scoped
+ * provider. As opposed to an {@code InvocationHandler}, the generated proxy class
+ * invokes the method directly on the returned object without any reflection.
+ *
+ * @author Simon Taddiken
+ */
+final class ProviderDispatcher implements Dispatcher {
+
+    private final Provider<?> provider;
+
+    ProviderDispatcher(Provider<?> provider) {
+        this.provider = provider;
+    }
+
+    @Override
+    public Object loadObject() {
+        return this.provider.get();
+    }
+}
@@ -0,0 +1,42 @@
+package de.skuzzle.inject.proxy;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.inject.Key;
+
+/**
+ * Collects the proxy classes that are generated while an injector is being created. If
+ * an instance of this class is bound in the injector, every scoped proxy reports its
+ * generated class and the type it has been bound to.
+ *
+ * @author Simon Taddiken
+ * @see ScopedProxyNativeImage
+ */
+final class ProxyClassCollector {
+
+    /** The key under which a collector is looked up by the scoped proxy providers. */
+    static final Key<ProxyClassCollector> KEY = Key.get(ProxyClassCollector.class);
+
+    private final Map<String, byte[]> proxyClasses = new LinkedHashMap<>();
+    private final Set<Class<?>> proxiedTypes = new LinkedHashSet<>();
+
+    synchronized void addProxyClass(String className, byte[] bytes) {
+        this.proxyClasses.put(className, bytes);
+    }
+
+    synchronized void addProxiedType(Class<?> type) {
+        this.proxiedTypes.add(type);
+    }
+
+    synchronized Map<String, byte[]> getProxyClasses() {
+        return Collections.unmodifiableMap(new LinkedHashMap<>(this.proxyClasses));
+    }
+
+    synchronized Set<Class<?>> getProxiedTypes() {
+        return Collections.unmodifiableSet(new LinkedHashSet<>(this.proxiedTypes));
+    }
+}
@@ -0,0 +1,125 @@
+package de.skuzzle.inject.proxy;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.function.UnaryOperator;
+
+import net.sf.cglib.proxy.Callback;
+
+/**
+ * Static utilities for working with scoped proxy objects.
+ * <p>
+ * Every method call on a scoped proxy resolves the scoped object on the calling thread.
+ * When a scoped proxy is used from within an asynchronous pipeline (like a
+ * {@link java.util.concurrent.CompletionStage CompletionStage} or a reactive
+ * {@code Publisher}), the pipeline might run on another thread after the scope has been
+ * left. Such pipelines should either capture the scoped object once while the scope is
+ * still active:
+ *
+ * <pre>
+ * final TenantContext context = ScopedProxies.resolve(this.tenantContext);
+ * return loadAsync().thenApply(result -&gt; context.filter(result));
+ * </pre>
+ *
+ * or capture only the scope and defer resolving the scoped object until the pipeline
+ * actually runs:
+ *
+ * <pre>
+ * return ScopedProxies.resolveAsync(this.tenantContext, executor,
+ *         ServletScopes::transferRequest)
+ *         .thenCombine(loadAsync(), (context, result) -&gt; context.filter(result));
+ * </pre>
+ *
+ * @author Simon Taddiken
+ */
+public final class ScopedProxies {
+
+    private ScopedProxies() {
+        // hidden
+    }
+
+    /**
+     * Determines whether the given object is a scoped proxy.
+     *
+     * @param object The object to test.
+     * @return Whether the object is a scoped proxy.
+     */
+    public static boolean isScopedProxy(Object object) {
+        return getDispatcher(object) != null;
+    }
+
+    /**
+     * Resolves the object to which the given scoped proxy currently delegates. The
+     * object is looked up within the scope that is active on the calling thread. If the
+     * given object is not a scoped proxy, it is returned as is.
+     *
+     * @param <T> The type of the object.
+     * @param object The scoped proxy.
+     * @return The current scoped object.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T resolve(T object) {
+        checkNotNull(object, "object");
+        final ProviderDispatcher dispatcher = getDispatcher(object);
+        return dispatcher == null
+                ? object
+                : (T) dispatcher.loadObject();
+    }
+
+    /**
+     * Resolves the object to which the given scoped proxy delegates within a stage that
+     * runs on the given executor. Only the current scope is captured on the calling
+     * thread using the given transfer function (like
+     * {@code ServletScopes::transferRequest}). The scoped object itself is not looked
+     * up before the returned stage runs. If the given object is not a scoped proxy, the
+     * returned stage is already completed with the object itself.
+     *
+     * @param <T> The type of the object.
+     * @param object The scoped proxy.
+     * @param executor The executor on which the scoped object will be resolved.
+     * @param scopeTransfer Transfers the current scope to the executing thread.
+     * @return Stage which completes with the scoped object.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> CompletionStage<T> resolveAsync(T object, Executor executor,
+            UnaryOperator<Callable<Object>> scopeTransfer) {
+        checkNotNull(object, "object");
+        checkNotNull(executor, "executor");
+        checkNotNull(scopeTransfer, "scopeTransfer");
+        final ProviderDispatcher dispatcher = getDispatcher(object);
+        if (dispatcher == null) {
+            return CompletableFuture.completedFuture(object);
+        }
+        return (CompletionStage<T>) callAsync(scopeTransfer.apply(dispatcher::loadObject),
+                executor);
+    }
+
+    /**
+     * Runs the given callable on the given executor. Checked exceptions complete the
+     * returned future exceptionally.
+     */
+    static CompletableFuture<Object> callAsync(Callable<Object> callable,
+            Executor executor) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return callable.call();
+            } catch (final Exception e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    private static ProviderDispatcher getDispatcher(Object object) {
+        for (final Callback callback : InstanceBuilder.getCallbacks(object)) {
+            if (callback instanceof ProviderDispatcher) {
+                return (ProviderDispatcher) callback;
+            }
+        }
+        return null;
+    }
+}
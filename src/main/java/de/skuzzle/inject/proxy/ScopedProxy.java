@@ -0,0 +1,55 @@
+package de.skuzzle.inject.proxy;
+
+import java.lang.annotation.Annotation;
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import com.google.inject.Binder;
+
+/**
+ * Marks an implementation class to be bound as scoped proxy. Annotated types are
+ * recorded in an index file by the {@link ScopedProxyProcessor} at compile time. The
+ * index can then be read at runtime using
+ * {@link ScopedProxyBinder.ScopedProxyBuilder#bindIndexed()} which registers all
+ * annotated types without scanning the class path:
+ *
+ * <pre>
+ * &#64;ScopedProxy(bindAs = MyService.class, scope = RequestScoped.class)
+ * public class MyServiceImpl implements MyService {
+ * }
+ *
+ * public class MyModule extends AbstractModule {
+ *     &#64;Override
+ *     public void configure() {
+ *         ScopedProxyBinder.using(binder()).bindIndexed();
+ *     }
+ * }
+ * </pre>
+ *
+ * @author Simon Taddiken
+ * @see ScopedProxyBinder.ScopedProxyBuilder#bindIndexed(ClassLoader)
+ */
+@Documented
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface ScopedProxy {
+
+    /**
+     * The scope annotation in which the annotated type will be bound.
+     *
+     * @return The scope annotation.
+     */
+    Class<? extends Annotation> scope();
+
+    /**
+     * The type under which the annotated type will be bound as scoped proxy. Defaults
+     * to the annotated type itself.
+     *
+     * @return The type to bind.
+     * @see Binder#bind(Class)
+     */
+    Class<?> bindAs() default void.class;
+}
@@ -1,16 +1,33 @@
 package de.skuzzle.inject.proxy;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
+import java.io.IOException;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
 
 import javax.inject.Singleton;
 
+import com.google.common.base.Defaults;
+import com.google.common.reflect.Reflection;
 import com.google.inject.Binder;
 import com.google.inject.Binding;
 import com.google.inject.BindingAnnotation;
@@ -20,13 +37,20 @@ import com.google.inject.Key;
 import com.google.inject.Module;
 import com.google.inject.Provider;
 import com.google.inject.Scope;
+import com.google.inject.Scopes;
 import com.google.inject.TypeLiteral;
 import com.google.inject.binder.LinkedBindingBuilder;
 import com.google.inject.binder.ScopedBindingBuilder;
 import com.google.inject.internal.BindingBuilder;
+import com.google.inject.multibindings.MapBinder;
+import com.google.inject.multibindings.Multibinder;
 import com.google.inject.name.Names;
+import com.google.inject.spi.BindingScopingVisitor;
 import com.google.inject.spi.Dependency;
 import com.google.inject.spi.HasDependencies;
+import com.google.inject.spi.InstanceBinding;
+import com.google.inject.spi.LinkedKeyBinding;
+import com.google.inject.spi.ProviderInstanceBinding;
 import com.google.inject.spi.Toolable;
 
 /**
@@ -51,6 +75,9 @@ import com.google.inject.spi.Toolable;
  */
 public final class ScopedProxyBinder {
 
+    private static final Logger LOG = Logger.getLogger(ScopedProxyBinder.class
+            .getName());
+
     private ScopedProxyBinder() {
         // hidden constructor;
     }
@@ -63,7 +90,75 @@ public final class ScopedProxyBinder {
      */
     public static ScopedProxyBuilder using(Binder binder) {
         checkNotNull(binder, "binder");
-        return new ScopedProxyBuilderImpl(binder);
+        // attribute all bindings to the caller instead of to this extension
+        return new ScopedProxyBuilderImpl(binder.skipSources(ScopedProxyBinder.class,
+                ScopedProxyBuilderImpl.class, FluentInterfaceImpl.class));
+    }
+
+    /**
+     * Exercises the dispatch path of all scoped proxies of the given injector so that it
+     * is compiled by the JIT before the application starts serving requests. Each proxy
+     * object is invoked the given number of times per method. The calls are not
+     * delegated to the actual scoped objects but to a synthetic target that does
+     * nothing, thus no scope needs to be active. Proxies are warmed up in parallel.
+     * <p>
+     * Only proxies of interfaces are warmed up because synthetic targets can not safely
+     * be created for concrete classes.
+     * <p>
+     * Note that the JIT profiles the synthetic {@link java.lang.reflect.Proxy} target
+     * and the provider used during warm up. The first real calls will thus likely
+     * deoptimize the compiled dispatch code again, which then gets recompiled with the
+     * real types. Warming up mainly saves generating and loading the involved classes
+     * and compiling the type independent parts of the dispatch.
+     *
+     * @param injector The injector containing the scoped proxy bindings.
+     * @param iterations The number of invocations per proxied method.
+     * @return The number of invocations that have been dispatched to synthetic targets.
+     */
+    public static long warmUp(Injector injector, int iterations) {
+        checkNotNull(injector, "injector");
+        checkArgument(iterations > 0, "iterations must be positive");
+        return scopedProxyProviders(injector).parallel()
+                .mapToLong(provider -> provider.warmUp(iterations))
+                .sum();
+    }
+
+    /**
+     * Collects the providers of the scoped objects of all bindings in the given
+     * injector which have been marked with {@link ScopedProxyBuilder#andPrefetch()}.
+     *
+     * @param injector The injector.
+     * @return The providers of the real bindings mapped by their keys.
+     * @throws IllegalStateException If any of the bindings has not been initialized
+     *             yet.
+     */
+    static Map<Key<?>, Provider<?>> prefetchedTargets(Injector injector) {
+        final Map<Key<?>, Provider<?>> result = new LinkedHashMap<>();
+        scopedProxyProviders(injector)
+                .filter(provider -> provider.settings.prefetch)
+                .forEach(provider -> {
+                    // reading ref first guarantees visibility of target
+                    final boolean proxied = provider.ref != null;
+                    checkState(proxied || provider.singletonProvider != null,
+                            "Scoped proxy %s has not been initialized yet. Prefetching "
+                                    + "requires a completely created injector",
+                            provider.source);
+                    // singletons are never proxied and thus not prefetched
+                    if (proxied) {
+                        result.put(provider.rewritten, provider.target);
+                    }
+                });
+        return result;
+    }
+
+    private static Stream<ScopedProxyProvider<?>> scopedProxyProviders(
+            Injector injector) {
+        return injector.getAllBindings().values().stream()
+                .filter(ProviderInstanceBinding.class::isInstance)
+                .map(binding -> ((ProviderInstanceBinding<?>) binding)
+                        .getUserSuppliedProvider())
+                .filter(ScopedProxyProvider.class::isInstance)
+                .map(provider -> (ScopedProxyProvider<?>) provider);
     }
 
     /**
@@ -83,6 +178,56 @@ public final class ScopedProxyBinder {
          */
         ScopedProxyBuilder andConstructionStrategy(ConstructionStrategy strategy);
 
+        /**
+         * Restricts all subsequently bound proxies to the public methods of their bound
+         * type. Methods with any other visibility will not be overridden by the
+         * generated proxy class and thus will not be delegated to the scoped object.
+         * This reduces the size of proxy classes for concrete types with many
+         * non-public methods.
+         *
+         * @return The builder object.
+         */
+        ScopedProxyBuilder andInterceptPublicMethodsOnly();
+
+        /**
+         * Creates all subsequently bound proxies with a compact layout. Compact proxy
+         * classes do not implement cglib's {@code Factory} interface which reduces
+         * their size. All proxy objects of a binding share the same immutable callback
+         * objects. Use this if you create many proxies, e.g. within many child
+         * injectors.
+         *
+         * @return The builder object.
+         */
+        ScopedProxyBuilder andCompactLayout();
+
+        /**
+         * Skips the proxy for all subsequently bound types whose real binding turns out
+         * to be a singleton or an instance binding. As such a proxy would always
+         * dispatch to the very same object, that object is handed out directly
+         * instead.
+         * <p>
+         * Do not use this if the proxy is needed to break a dependency cycle between
+         * singletons, for example if circular proxies have been disabled using
+         * {@link Binder#disableCircularProxies()}.
+         *
+         * @return The builder object.
+         */
+        ScopedProxyBuilder andBypassSingletonTargets();
+
+        /**
+         * Marks all subsequently bound proxies to be prefetched. The scoped objects of
+         * such proxies are created asynchronously as soon as
+         * {@link ScopedProxyPrefetcher#prefetch(Executor, UnaryOperator)} is called upon
+         * entering the scope. The first method call on the proxy then only waits if the
+         * object has not been created yet.
+         * <p>
+         * Use this for scoped objects that are expensive to create.
+         *
+         * @return The builder object.
+         * @see ScopedProxyPrefetcher
+         */
+        ScopedProxyBuilder andPrefetch();
+
         /**
          * Specifies the type to bind.
          *
@@ -121,12 +266,150 @@ public final class ScopedProxyBinder {
          * @return The builder object.
          */
         <T> LinkedBindingBuilder<T> bind(Key<T> key);
+
+        /**
+         * Specifies the {@link Key} to bind and additionally binds all given alias keys
+         * to the very same proxy object. Use this to expose a single scoped object under
+         * several of its interfaces:
+         *
+         * <pre>
+         * ScopedProxyBinder.using(binder())
+         *         .bind(Key.get(RequestContext.class), Arrays.asList(
+         *                 Key.get(TenantInfo.class),
+         *                 Key.get(UserInfo.class)))
+         *         .to(RequestContextImpl.class)
+         *         .in(RequestScoped.class);
+         * </pre>
+         *
+         * Only a single proxy class is generated for {@code RequestContext} and every
+         * method call on any of the keys resolves the same scoped object.
+         *
+         * @param <T> The type to bind.
+         * @param key The key.
+         * @param aliases Further keys which are bound to the same proxy. Their types must
+         *            be super types of {@code T}.
+         * @return The builder object.
+         */
+        <T> LinkedBindingBuilder<T> bind(Key<T> key,
+                Iterable<? extends Key<? super T>> aliases);
+
+        /**
+         * Adds a scoped proxy to the set of the given element type as created by
+         * {@link Multibinder#newSetBinder(Binder, Class)}. The set can be injected into
+         * wider scopes and only the elements that are actually invoked will resolve
+         * their scoped objects. The elements' {@code equals} and {@code hashCode}
+         * methods are based on the identity of the proxy and are not delegated.
+         *
+         * @param <T> The element type.
+         * @param elementType The element type of the set.
+         * @return The builder object.
+         */
+        <T> LinkedBindingBuilder<T> addToSet(Class<T> elementType);
+
+        /**
+         * Adds a scoped proxy to the set identified by the given element key as created
+         * by {@link Multibinder#newSetBinder(Binder, Key)}.
+         *
+         * @param <T> The element type.
+         * @param elementKey The key of the set's elements.
+         * @return The builder object.
+         * @see #addToSet(Class)
+         */
+        <T> LinkedBindingBuilder<T> addToSet(Key<T> elementKey);
+
+        /**
+         * Adds a scoped proxy with the given key to the map as created by
+         * {@link MapBinder#newMapBinder(Binder, Class, Class)}. The map can be injected
+         * into wider scopes and only the values that are actually invoked will resolve
+         * their scoped objects. The values' {@code equals} and {@code hashCode} methods
+         * are based on the identity of the proxy and are not delegated.
+         *
+         * @param <K> The map's key type.
+         * @param <V> The map's value type.
+         * @param keyType The map's key type.
+         * @param valueType The map's value type.
+         * @param mapKey The key of the proxy within the map.
+         * @return The builder object.
+         */
+        <K, V> LinkedBindingBuilder<V> addToMap(Class<K> keyType, Class<V> valueType,
+                K mapKey);
+
+        /**
+         * Adds a scoped proxy with the given key to the map as created by
+         * {@link MapBinder#newMapBinder(Binder, TypeLiteral, TypeLiteral)}.
+         *
+         * @param <K> The map's key type.
+         * @param <V> The map's value type.
+         * @param keyType The map's key type.
+         * @param valueType The map's value type.
+         * @param mapKey The key of the proxy within the map.
+         * @return The builder object.
+         * @see #addToMap(Class, Class, Object)
+         */
+        <K, V> LinkedBindingBuilder<V> addToMap(TypeLiteral<K> keyType,
+                TypeLiteral<V> valueType, K mapKey);
+
+        /**
+         * Binds every key of the given map as scoped proxy to its mapped implementation
+         * key and puts all the real bindings into the same scope. This is equivalent to
+         * calling {@code bind(key).to(implementation).in(scopeAnnotation)} for each
+         * entry but validates all entries up front and reports every mismatch at once.
+         * <p>
+         * This is mainly a convenience for binding many types at once. The settings of
+         * this builder are only captured once for all entries, but a proxy class is
+         * still generated for every bound type.
+         *
+         * @param bindings Maps the keys to bind to the keys of their implementations.
+         * @param scopeAnnotation The scope annotation for all real bindings.
+         * @return The builder object.
+         */
+        ScopedProxyBuilder bindAll(Map<? extends Key<?>, ? extends Key<?>> bindings,
+                Class<? extends Annotation> scopeAnnotation);
+
+        /**
+         * Binds every key of the given map as scoped proxy to its mapped implementation
+         * key and puts all the real bindings into the same scope.
+         *
+         * @param bindings Maps the keys to bind to the keys of their implementations.
+         * @param scope The scope for all real bindings.
+         * @return The builder object.
+         * @see #bindAll(Map, Class)
+         */
+        ScopedProxyBuilder bindAll(Map<? extends Key<?>, ? extends Key<?>> bindings,
+                Scope scope);
+
+        /**
+         * Binds all types annotated with {@link ScopedProxy} that have been recorded by
+         * the {@link ScopedProxyProcessor} at compile time. Index files are looked up
+         * using the current thread's context class loader or, if there is none, using
+         * the class loader of this library.
+         *
+         * @return The builder object.
+         * @see #bindIndexed(ClassLoader)
+         */
+        ScopedProxyBuilder bindIndexed();
+
+        /**
+         * Binds all types annotated with {@link ScopedProxy} that have been recorded by
+         * the {@link ScopedProxyProcessor} at compile time. All index files visible to
+         * the given class loader are read. No class path scanning or reflective
+         * annotation lookup takes place.
+         *
+         * @param classLoader The class loader used to find the index files and to load
+         *            the indexed types.
+         * @return The builder object.
+         */
+        ScopedProxyBuilder bindIndexed(ClassLoader classLoader);
     }
 
     private static final class ScopedProxyBuilderImpl implements ScopedProxyBuilder {
 
         private final Binder binder;
         private ConstructionStrategy strategy = ConstructionStrategies.OBJENESIS;
+        private boolean publicMethodsOnly;
+        private boolean compact;
+        private boolean bypassSingletons;
+        private boolean prefetch;
 
         ScopedProxyBuilderImpl(Binder binder) {
             this.binder = binder;
@@ -140,6 +423,30 @@ public final class ScopedProxyBinder {
             return this;
         }
 
+        @Override
+        public ScopedProxyBuilder andInterceptPublicMethodsOnly() {
+            this.publicMethodsOnly = true;
+            return this;
+        }
+
+        @Override
+        public ScopedProxyBuilder andCompactLayout() {
+            this.compact = true;
+            return this;
+        }
+
+        @Override
+        public ScopedProxyBuilder andBypassSingletonTargets() {
+            this.bypassSingletons = true;
+            return this;
+        }
+
+        @Override
+        public ScopedProxyBuilder andPrefetch() {
+            this.prefetch = true;
+            return this;
+        }
+
         @Override
         public <T> LinkedBindingBuilder<T> bind(Class<T> cls,
                 Class<? extends Annotation> annotationClass) {
@@ -158,8 +465,197 @@ public final class ScopedProxyBinder {
 
         @Override
         public <T> LinkedBindingBuilder<T> bind(Key<T> sourceKey) {
+            return bind(sourceKey, settings());
+        }
+
+        private <T> LinkedBindingBuilder<T> bind(Key<T> sourceKey,
+                ProxySettings settings) {
             checkNotNull(sourceKey);
-            return new FluentInterfaceImpl<>(this.binder, sourceKey, this.strategy);
+            // backup the original binding using an internal annotation to
+            // create a unique hidden key.
+            final Key<T> rewrittenKey = Key.get(sourceKey.getTypeLiteral(),
+                    Names.named(UUID.randomUUID().toString()));
+            return new FluentInterfaceImpl<>(this.binder, sourceKey, rewrittenKey,
+                    settings);
+        }
+
+        private ProxySettings settings() {
+            return new ProxySettings(this.strategy, this.publicMethodsOnly,
+                    this.compact, this.bypassSingletons, this.prefetch, false);
+        }
+
+        @Override
+        public <T> LinkedBindingBuilder<T> bind(Key<T> key,
+                Iterable<? extends Key<? super T>> aliases) {
+            checkNotNull(aliases, "aliases");
+            final LinkedBindingBuilder<T> builder = bind(key);
+            for (final Key<? super T> alias : aliases) {
+                checkNotNull(alias, "alias");
+                bindAlias(alias, key);
+            }
+            return builder;
+        }
+
+        private <S, T extends S> void bindAlias(Key<S> alias, Key<T> key) {
+            // all aliases are linked to the same singleton proxy
+            this.binder.bind(alias).to(key);
+        }
+
+        @Override
+        public <T> LinkedBindingBuilder<T> addToSet(Class<T> elementType) {
+            return addToSet(Key.get(elementType));
+        }
+
+        @Override
+        public <T> LinkedBindingBuilder<T> addToSet(Key<T> elementKey) {
+            checkNotNull(elementKey, "elementKey");
+            final Key<T> proxyKey = uniqueKey(elementKey.getTypeLiteral());
+            final LinkedBindingBuilder<T> builder = bind(proxyKey,
+                    settings().withIdentityEquality());
+            Multibinder.newSetBinder(this.binder, elementKey)
+                    .addBinding()
+                    .to(proxyKey);
+            return builder;
+        }
+
+        @Override
+        public <K, V> LinkedBindingBuilder<V> addToMap(Class<K> keyType,
+                Class<V> valueType, K mapKey) {
+            return addToMap(TypeLiteral.get(keyType), TypeLiteral.get(valueType), mapKey);
+        }
+
+        @Override
+        public <K, V> LinkedBindingBuilder<V> addToMap(TypeLiteral<K> keyType,
+                TypeLiteral<V> valueType, K mapKey) {
+            checkNotNull(keyType, "keyType");
+            checkNotNull(valueType, "valueType");
+            checkNotNull(mapKey, "mapKey");
+            final Key<V> proxyKey = uniqueKey(valueType);
+            final LinkedBindingBuilder<V> builder = bind(proxyKey,
+                    settings().withIdentityEquality());
+            MapBinder.newMapBinder(this.binder, keyType, valueType)
+                    .addBinding(mapKey)
+                    .to(proxyKey);
+            return builder;
+        }
+
+        private static <T> Key<T> uniqueKey(TypeLiteral<T> type) {
+            // the proxy itself is bound under a hidden key and then added to the
+            // collection. Such proxies are compared by identity because building the
+            // collection must not resolve their scoped objects
+            return Key.get(type, Names.named(UUID.randomUUID().toString()));
+        }
+
+        @Override
+        public ScopedProxyBuilder bindAll(
+                Map<? extends Key<?>, ? extends Key<?>> bindings,
+                Class<? extends Annotation> scopeAnnotation) {
+            checkNotNull(scopeAnnotation, "scopeAnnotation");
+            FluentInterfaceImpl.checkSingleton(scopeAnnotation);
+            bindAll(bindings, builder -> builder.in(scopeAnnotation));
+            return this;
+        }
+
+        @Override
+        public ScopedProxyBuilder bindAll(
+                Map<? extends Key<?>, ? extends Key<?>> bindings, Scope scope) {
+            checkNotNull(scope, "scope");
+            bindAll(bindings, builder -> builder.in(scope));
+            return this;
+        }
+
+        @Override
+        public ScopedProxyBuilder bindIndexed() {
+            final ClassLoader contextClassLoader = Thread.currentThread()
+                    .getContextClassLoader();
+            return bindIndexed(contextClassLoader == null
+                    ? ScopedProxyBinder.class.getClassLoader()
+                    : contextClassLoader);
+        }
+
+        @Override
+        public ScopedProxyBuilder bindIndexed(ClassLoader classLoader) {
+            checkNotNull(classLoader, "classLoader");
+            final List<ScopedProxyIndex.Entry> entries;
+            try {
+                entries = ScopedProxyIndex.read(classLoader);
+            } catch (IOException | IllegalArgumentException e) {
+                this.binder.addError("Error reading scoped proxy index: %s",
+                        e.getMessage());
+                return this;
+            }
+
+            // group by scope so that each scope is bound in a single pass
+            final Map<Class<? extends Annotation>, Map<Key<?>, Key<?>>> byScope = new LinkedHashMap<>();
+            for (final ScopedProxyIndex.Entry entry : entries) {
+                try {
+                    final Class<?> boundType = Class.forName(entry.boundType, false,
+                            classLoader);
+                    final Class<?> implementationType = Class.forName(
+                            entry.implementationType, false, classLoader);
+                    final Class<? extends Annotation> scopeAnnotation = Class
+                            .forName(entry.scopeAnnotation, false, classLoader)
+                            .asSubclass(Annotation.class);
+
+                    byScope.computeIfAbsent(scopeAnnotation, scope -> new LinkedHashMap<>())
+                            .put(Key.get(boundType), Key.get(implementationType));
+                } catch (ClassNotFoundException | ClassCastException e) {
+                    this.binder.addError(
+                            "Error reading scoped proxy index entry '%s': %s",
+                            entry.format(), e.getMessage());
+                }
+            }
+
+            byScope.forEach((scopeAnnotation, bindings) -> bindAll(bindings,
+                    scopeAnnotation));
+            return this;
+        }
+
+        private void bindAll(Map<? extends Key<?>, ? extends Key<?>> bindings,
+                Consumer<ScopedBindingBuilder> scoping) {
+            checkNotNull(bindings, "bindings");
+
+            // validate all entries first so that a single misconfiguration does not
+            // leave the module half bound
+            boolean valid = true;
+            for (final Map.Entry<? extends Key<?>, ? extends Key<?>> entry : bindings
+                    .entrySet()) {
+                final Key<?> source = checkNotNull(entry.getKey(), "key");
+                final Key<?> target = checkNotNull(entry.getValue(),
+                        "implementation of %s", source);
+                final Class<?> sourceType = source.getTypeLiteral().getRawType();
+                final Class<?> targetType = target.getTypeLiteral().getRawType();
+                if (!sourceType.isAssignableFrom(targetType)) {
+                    this.binder.addError("%s can not be bound as scoped proxy to %s " +
+                            "because it is not a sub type", source, target);
+                    valid = false;
+                }
+            }
+
+            if (!valid) {
+                return;
+            }
+
+            // Share the work that is the same for all entries: each hidden key would
+            // otherwise draw a fresh random UUID.
+            final ProxySettings settings = settings();
+            final String prefix = UUID.randomUUID().toString();
+            int index = 0;
+            for (final Map.Entry<? extends Key<?>, ? extends Key<?>> entry : bindings
+                    .entrySet()) {
+                scoping.accept(bindUnchecked(this.binder, entry.getKey(), entry.getValue(),
+                        prefix + "#" + index++, settings));
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <T> ScopedBindingBuilder bindUnchecked(Binder binder,
+                Key<T> source, Key<?> target, String hiddenName,
+                ProxySettings settings) {
+            final Key<T> rewrittenKey = Key.get(source.getTypeLiteral(),
+                    Names.named(hiddenName));
+            return new FluentInterfaceImpl<>(binder, source, rewrittenKey, settings)
+                    .to((Key<? extends T>) target);
         }
     }
 
@@ -167,35 +663,29 @@ public final class ScopedProxyBinder {
             ScopedBindingBuilder {
 
         private final Binder binder;
-        private final ConstructionStrategy strategy;
+        private final ProxySettings settings;
         private final Key<T> source;
         private final Key<T> rewrittenKey;
         private BindingBuilder<T> targetBuilder;
 
-        private FluentInterfaceImpl(Binder binder, Key<T> sourceKey,
-                ConstructionStrategy strategy) {
+        private FluentInterfaceImpl(Binder binder, Key<T> sourceKey, Key<T> rewrittenKey,
+                ProxySettings settings) {
             this.binder = binder;
-            this.strategy = strategy;
+            this.settings = settings;
             this.source = sourceKey;
-            this.rewrittenKey = bindSource();
+            this.rewrittenKey = rewrittenKey;
+            bindSource();
             bindRewritten();
         }
 
-        private Key<T> bindSource() {
-            // backup the original binding using an internal annotation to
-            // create a unique hidden key.
-            final UUID uuid = UUID.randomUUID();
-            final Key<T> rewritten = Key.get(this.source.getTypeLiteral(),
-                    Names.named(uuid.toString()));
-
+        private void bindSource() {
             // bind the user specified source type to the provider which creates
             // the scoped proxy objects.
             this.binder.bind(this.source)
                     .toProvider(
-                            new ScopedProxyProvider<>(this.source, rewritten,
-                                    this.strategy))
+                            new ScopedProxyProvider<>(this.source, this.rewrittenKey,
+                                    this.settings))
                     .in(Singleton.class);
-            return rewritten;
         }
 
         private BindingBuilder<T> bindRewritten() {
@@ -302,17 +792,104 @@ public final class ScopedProxyBinder {
         }
     }
 
+    /**
+     * Immutable snapshot of the settings of a {@link ScopedProxyBuilder} at the time a
+     * binding has been created.
+     *
+     * @author Simon Taddiken
+     */
+    private static final class ProxySettings {
+        private final ConstructionStrategy strategy;
+        private final boolean publicMethodsOnly;
+        private final boolean compact;
+        private final boolean bypassSingletons;
+        private final boolean prefetch;
+        private final boolean identityEquality;
+
+        ProxySettings(ConstructionStrategy strategy, boolean publicMethodsOnly,
+                boolean compact, boolean bypassSingletons, boolean prefetch,
+                boolean identityEquality) {
+            this.strategy = strategy;
+            this.publicMethodsOnly = publicMethodsOnly;
+            this.compact = compact;
+            this.bypassSingletons = bypassSingletons;
+            this.prefetch = prefetch;
+            this.identityEquality = identityEquality;
+        }
+
+        ProxySettings withIdentityEquality() {
+            return new ProxySettings(this.strategy, this.publicMethodsOnly, this.compact,
+                    this.bypassSingletons, this.prefetch, true);
+        }
+
+        <T> InstanceBuilder<T> configure(InstanceBuilder<T> builder) {
+            builder.withConstructionStrategy(this.strategy);
+            if (this.publicMethodsOnly) {
+                builder.interceptPublicMethodsOnly();
+            }
+            if (this.compact) {
+                builder.compactLayout();
+            }
+            if (this.identityEquality) {
+                builder.identityEquality();
+            }
+            return builder;
+        }
+    }
+
     private static class ScopedProxyProvider<T> implements Provider<T>, HasDependencies {
 
+        /** Determines whether a binding's scoping always yields the same instance. */
+        private static final BindingScopingVisitor<Boolean> IS_SINGLETON = new BindingScopingVisitor<Boolean>() {
+
+            @Override
+            public Boolean visitEagerSingleton() {
+                return true;
+            }
+
+            @Override
+            public Boolean visitScope(Scope scope) {
+                return scope == Scopes.SINGLETON;
+            }
+
+            @Override
+            public Boolean visitScopeAnnotation(
+                    Class<? extends Annotation> scopeAnnotation) {
+                return Singleton.class.equals(scopeAnnotation) ||
+                        com.google.inject.Singleton.class.equals(scopeAnnotation);
+            }
+
+            @Override
+            public Boolean visitNoScoping() {
+                return false;
+            }
+        };
+
+        final Key<T> source;
         final Key<T> rewritten;
-        final ConstructionStrategy strategy;
-        Set<Dependency<?>> dependencies;
-        T ref;
+        final ProxySettings settings;
+
+        // Both fields are written exactly once during initialization and read without
+        // locking afterwards. volatile guarantees safe publication of the fully
+        // constructed proxy regardless of which thread performed the initialization.
+        volatile Set<Dependency<?>> dependencies;
+        volatile T ref;
+
+        // Set instead of ref if the real binding is effectively a singleton. The target
+        // is then resolved lazily on first access because it might not be ready
+        // during initialization.
+        volatile Provider<T> singletonProvider;
+
+        // only set if a proxy has been created. Published together with ref
+        Class<T> proxyType;
+        Injector injector;
+        Provider<T> target;
 
         ScopedProxyProvider(Key<T> sourceKey, Key<T> rewrittenKey,
-                ConstructionStrategy strategy) {
+                ProxySettings settings) {
+            this.source = sourceKey;
             this.rewritten = rewrittenKey;
-            this.strategy = strategy;
+            this.settings = settings;
             this.dependencies = Collections.singleton(
                     Dependency.get(Key.get(Injector.class)));
         }
@@ -324,22 +901,115 @@ public final class ScopedProxyBinder {
             final Binding<T> realBinding = injector.getBinding(this.rewritten);
             final Provider<T> realProvider = injector.getProvider(realBinding.getKey());
 
+            if (this.settings.bypassSingletons && isSingleton(injector, realBinding)) {
+                // A proxy would always dispatch to the very same object, so we can hand
+                // out that object directly
+                LOG.log(Level.FINE, "Not creating a scoped proxy for {0} because its "
+                        + "target is bound as singleton or instance: {1}",
+                        new Object[] { this.source, realBinding });
+                this.dependencies = Collections.singleton(
+                        Dependency.get(this.rewritten));
+                this.singletonProvider = realProvider;
+                return;
+            }
+
             // The proxy will be a sub type of the source type of the binding
             final Class<T> proxyType = (Class<T>) realBinding.getKey()
                     .getTypeLiteral().getRawType();
 
+            final Provider<T> target = this.settings.prefetch
+                    ? ScopedProxyPrefetcher.awaitingPrefetch(this.rewritten, realProvider)
+                    : realProvider;
+            final InstanceBuilder<T> builder = this.settings.configure(
+                    InstanceBuilder.forType(proxyType))
+                    .dispatchTo(target);
+            final Binding<ProxyClassCollector> collectorBinding = injector
+                    .getExistingBinding(ProxyClassCollector.KEY);
+            if (collectorBinding instanceof InstanceBinding) {
+                final ProxyClassCollector collector = ((InstanceBinding<ProxyClassCollector>) collectorBinding)
+                        .getInstance();
+                collector.addProxiedType(proxyType);
+                builder.recordingTo(collector);
+            }
+            final T proxy = builder.create(injector);
+
             this.dependencies = Collections.singleton(
                     Dependency.get(this.rewritten));
-            this.ref = InstanceBuilder.forType(proxyType)
-                    .withConstructionStrategy(this.strategy)
-                    .dispatchTo(realProvider)
-                    .create(injector);
+            this.proxyType = proxyType;
+            this.injector = injector;
+            this.target = realProvider;
+            // publish the proxy last so that readers observing it also observe the
+            // updated dependencies
+            this.ref = proxy;
+        }
+
+        long warmUp(int iterations) {
+            if (this.ref == null || this.proxyType == null) {
+                return 0;
+            } else if (!this.proxyType.isInterface()) {
+                LOG.log(Level.FINE, "Skipping warm up of scoped proxy for concrete type "
+                        + "{0}", this.proxyType.getName());
+                return 0;
+            }
+
+            // The synthetic target does nothing but counting and returning default
+            // values
+            final AtomicLong invocations = new AtomicLong();
+            final T target = Reflection.newProxy(this.proxyType,
+                    (proxy, method, args) -> {
+                        invocations.incrementAndGet();
+                        return Defaults.defaultValue(method.getReturnType());
+                    });
+            final T warmUpProxy = this.settings.configure(
+                    InstanceBuilder.forType(this.proxyType))
+                    .dispatchTo(() -> target)
+                    .create(this.injector);
+
+            for (final Method method : this.proxyType.getMethods()) {
+                if (Modifier.isStatic(method.getModifiers())) {
+                    continue;
+                }
+                final Object[] args = Arrays.stream(method.getParameterTypes())
+                        .map(Defaults::defaultValue)
+                        .toArray();
+                try {
+                    for (int i = 0; i < iterations; ++i) {
+                        method.invoke(warmUpProxy, args);
+                    }
+                } catch (ReflectiveOperationException | RuntimeException e) {
+                    LOG.log(Level.FINE, "Error while warming up " + method, e);
+                }
+            }
+            return invocations.get();
+        }
+
+        private boolean isSingleton(Injector injector, Binding<?> binding) {
+            Binding<?> current = binding;
+            // stop when the chain of linked bindings leads back to our own binding
+            while (!current.getKey().equals(this.source)) {
+                if (current instanceof InstanceBinding
+                        || current.acceptScopingVisitor(IS_SINGLETON)) {
+                    return true;
+                } else if (!(current instanceof LinkedKeyBinding)) {
+                    return false;
+                }
+                current = injector.getBinding(
+                        ((LinkedKeyBinding<?>) current).getLinkedKey());
+            }
+            return false;
         }
 
         @Override
         public T get() {
-            checkState(this.ref != null, "Scoped proxy provider not initialized");
-            return this.ref;
+            T proxy = this.ref;
+            if (proxy == null) {
+                final Provider<T> singleton = this.singletonProvider;
+                checkState(singleton != null, "Scoped proxy provider not initialized");
+                // Racing threads will observe the same singleton instance
+                proxy = singleton.get();
+                this.ref = proxy;
+            }
+            return proxy;
         }
 
         @Override
@@ -0,0 +1,109 @@
+package de.skuzzle.inject.proxy;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+
+import com.google.common.base.Splitter;
+
+/**
+ * Reads and writes the index of {@link ScopedProxy} annotated types which is created by
+ * the {@link ScopedProxyProcessor}. The index is a plain text file in which each line
+ * describes a single binding in the form
+ *
+ * <pre>
+ * &lt;binary name of bound type&gt; &lt;binary name of implementation&gt; &lt;binary name of scope annotation&gt;
+ * </pre>
+ *
+ * Empty lines and lines starting with {@code #} are ignored.
+ *
+ * @author Simon Taddiken
+ */
+final class ScopedProxyIndex {
+
+    /** Location of the index file within the class path. */
+    static final String LOCATION = "META-INF/de.skuzzle.inject.proxy/scoped-proxies";
+
+    private static final Splitter COLUMNS = Splitter.on(' ').omitEmptyStrings();
+
+    private ScopedProxyIndex() {
+        // hidden
+    }
+
+    /**
+     * A single entry of the index.
+     *
+     * @author Simon Taddiken
+     */
+    static final class Entry {
+        final String boundType;
+        final String implementationType;
+        final String scopeAnnotation;
+
+        Entry(String boundType, String implementationType, String scopeAnnotation) {
+            this.boundType = boundType;
+            this.implementationType = implementationType;
+            this.scopeAnnotation = scopeAnnotation;
+        }
+
+        String format() {
+            return this.boundType + " " + this.implementationType + " "
+                    + this.scopeAnnotation;
+        }
+
+        static Entry parse(String line) {
+            final List<String> columns = COLUMNS.splitToList(line);
+            checkArgument(columns.size() == 3, "malformed scoped proxy index entry: %s",
+                    line);
+            return new Entry(columns.get(0), columns.get(1), columns.get(2));
+        }
+    }
+
+    /**
+     * Reads the entries of all index files that are visible to the given class loader.
+     *
+     * @param classLoader The class loader to search for index files.
+     * @return The entries of all index files.
+     * @throws IOException If reading any index file fails.
+     */
+    static List<Entry> read(ClassLoader classLoader) throws IOException {
+        final List<Entry> entries = new ArrayList<>();
+        final Enumeration<URL> resources = classLoader.getResources(LOCATION);
+        while (resources.hasMoreElements()) {
+            final URL resource = resources.nextElement();
+            try (Reader reader = new InputStreamReader(resource.openStream(),
+                    StandardCharsets.UTF_8)) {
+                entries.addAll(read(reader));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Reads the entries of a single index file.
+     *
+     * @param reader Reader for the contents of the index file.
+     * @return The entries.
+     * @throws IOException If reading fails.
+     */
+    static List<Entry> read(Reader reader) throws IOException {
+        final List<Entry> entries = new ArrayList<>();
+        final BufferedReader lines = new BufferedReader(reader);
+        String line;
+        while ((line = lines.readLine()) != null) {
+            line = line.trim();
+            if (!line.isEmpty() && !line.startsWith("#")) {
+                entries.add(Entry.parse(line));
+            }
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,180 @@
+package de.skuzzle.inject.proxy;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.Iterables;
+import com.google.inject.Guice;
+import com.google.inject.Module;
+import com.google.inject.Stage;
+
+/**
+ * Generates scoped proxy classes at build time for running in a GraalVM native image.
+ * Native images do not support defining classes at runtime, so the proxy classes for
+ * all scoped proxy bindings of the given modules are written as class files together
+ * with the reflection metadata that is required to instantiate them.
+ * <p>
+ * The modules are evaluated using {@link Stage#TOOL} so no objects are provisioned.
+ * The output directory should be added to the class path of the native image build.
+ * Within a native image, the pre generated proxy classes are loaded instead of
+ * generating new ones. On a regular JVM they are only loaded if the system property
+ * {@value #PREGENERATED_CLASSES_PROPERTY} is {@code true}. The name of each class
+ * contains a fingerprint of the proxied type, so classes that have been generated for
+ * an outdated version of a type are never loaded. This class can be invoked from the
+ * build by running its {@link #main(String[])} method:
+ *
+ * <pre>
+ * java de.skuzzle.inject.proxy.ScopedProxyNativeImage &lt;output directory&gt; &lt;module class&gt;...
+ * </pre>
+ *
+ * @author Simon Taddiken
+ */
+public final class ScopedProxyNativeImage {
+
+    /** Location of the reflection configuration within the output directory. */
+    public static final String REFLECT_CONFIG = "META-INF/native-image/scoped-proxies/reflect-config.json";
+
+    /**
+     * System property which enables loading pre generated proxy classes outside of a
+     * native image.
+     */
+    public static final String PREGENERATED_CLASSES_PROPERTY = "de.skuzzle.inject.proxy.pregenerated";
+
+    /** System property that GraalVM sets while building and running a native image. */
+    private static final String IMAGE_CODE_PROPERTY = "org.graalvm.nativeimage.imagecode";
+
+    private ScopedProxyNativeImage() {
+        // hidden
+    }
+
+    /**
+     * Command line entry point. The first argument is the output directory, all further
+     * arguments are the fully qualified names of {@link Module} implementations with a
+     * public no-argument constructor.
+     *
+     * @param args The command line arguments.
+     * @throws Exception If generating the classes fails.
+     */
+    public static void main(String[] args) throws Exception {
+        checkArgument(args.length >= 2,
+                "Usage: ScopedProxyNativeImage <output directory> <module class>...");
+        final List<Module> modules = new ArrayList<>(args.length - 1);
+        for (final String moduleName : Arrays.asList(args).subList(1, args.length)) {
+            modules.add(Class.forName(moduleName)
+                    .asSubclass(Module.class)
+                    .getConstructor()
+                    .newInstance());
+        }
+        generate(Paths.get(args[0]), modules);
+    }
+
+    /**
+     * Writes the proxy classes and the reflection configuration for all scoped proxy
+     * bindings of the given modules into the given directory.
+     *
+     * @param outputDirectory The directory to write the files to.
+     * @param modules The modules.
+     * @throws IOException If writing any file fails.
+     */
+    public static void generate(Path outputDirectory, Module... modules)
+            throws IOException {
+        generate(outputDirectory, Arrays.asList(modules));
+    }
+
+    /**
+     * Writes the proxy classes and the reflection configuration for all scoped proxy
+     * bindings of the given modules into the given directory.
+     *
+     * @param outputDirectory The directory to write the files to.
+     * @param modules The modules.
+     * @throws IOException If writing any file fails.
+     */
+    public static void generate(Path outputDirectory,
+            Iterable<? extends Module> modules) throws IOException {
+        checkNotNull(outputDirectory, "outputDirectory");
+        checkNotNull(modules, "modules");
+
+        final ProxyClassCollector collector = new ProxyClassCollector();
+        final Module collectorModule = binder -> binder.bind(ProxyClassCollector.KEY)
+                .toInstance(collector);
+        Guice.createInjector(Stage.TOOL, Iterables.concat(modules,
+                Arrays.asList(collectorModule)));
+
+        for (final Map.Entry<String, byte[]> proxyClass : collector.getProxyClasses()
+                .entrySet()) {
+            final Path classFile = outputDirectory.resolve(
+                    proxyClass.getKey().replace('.', '/') + ".class");
+            Files.createDirectories(classFile.getParent());
+            Files.write(classFile, proxyClass.getValue());
+        }
+
+        final Path reflectConfig = outputDirectory.resolve(REFLECT_CONFIG);
+        Files.createDirectories(reflectConfig.getParent());
+        try (Writer writer = Files.newBufferedWriter(reflectConfig,
+                StandardCharsets.UTF_8)) {
+            writeReflectConfig(writer, collector);
+        }
+    }
+
+    /**
+     * Whether proxy classes which have been generated by this class should be loaded
+     * instead of generating new ones.
+     */
+    static boolean loadPregeneratedClasses() {
+        return Boolean.getBoolean(PREGENERATED_CLASSES_PROPERTY)
+                || System.getProperty(IMAGE_CODE_PROPERTY) != null;
+    }
+
+    private static void writeReflectConfig(Writer writer, ProxyClassCollector collector)
+            throws IOException {
+        final List<String> entries = new ArrayList<>();
+        for (final String proxyClass : collector.getProxyClasses().keySet()) {
+            // proxies are instantiated reflectively and might bypass constructors
+            entries.add(String.format("  {%n"
+                    + "    \"name\": \"%s\",%n"
+                    + "    \"allDeclaredConstructors\": true,%n"
+                    + "    \"allDeclaredMethods\": true,%n"
+                    + "    \"allDeclaredFields\": true,%n"
+                    + "    \"unsafeAllocated\": true%n"
+                    + "  }", proxyClass));
+        }
+        for (final Class<?> type : typeHierarchy(collector.getProxiedTypes())) {
+            // methods are inspected for the @Idempotent annotation and to compute the
+            // fingerprint of the proxy class
+            entries.add(String.format("  {%n"
+                    + "    \"name\": \"%s\",%n"
+                    + "    \"allDeclaredMethods\": true%n"
+                    + "  }", type.getName()));
+        }
+
+        writer.write("[");
+        writer.write(System.lineSeparator());
+        writer.write(String.join("," + System.lineSeparator(), entries));
+        writer.write(System.lineSeparator());
+        writer.write("]");
+        writer.write(System.lineSeparator());
+    }
+
+    private static Set<Class<?>> typeHierarchy(Set<Class<?>> types) {
+        final Set<Class<?>> result = new LinkedHashSet<>();
+        for (final Class<?> type : types) {
+            result.addAll(InstanceBuilder.typeHierarchy(type));
+        }
+        // the proxies of interfaces extend Object
+        result.add(Object.class);
+        return result;
+    }
+}
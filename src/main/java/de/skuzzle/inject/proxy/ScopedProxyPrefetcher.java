@@ -0,0 +1,177 @@
+package de.skuzzle.inject.proxy;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.UnaryOperator;
+
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.Provider;
+
+/**
+ * Asynchronously creates the scoped objects of all proxies that have been bound using
+ * {@link ScopedProxyBinder.ScopedProxyBuilder#andPrefetch()}. Guice has no notion of
+ * entering a scope, so {@link #prefetch(Executor, UnaryOperator)} must be called by the
+ * code that enters the scope, for example a servlet filter:
+ *
+ * <pre>
+ * try (ScopedProxyPrefetcher.Prefetch prefetch = this.prefetcher
+ *         .prefetch(this.executor, ServletScopes::transferRequest)) {
+ *     chain.doFilter(request, response);
+ * }
+ * </pre>
+ *
+ * The prefetcher of an injector covers the proxies of that injector and of all its
+ * parents. When using child injectors, make sure to obtain the prefetcher of the child
+ * injector that is actually used within the scope. Obtaining a prefetcher inspects all
+ * bindings of the injector, so it should be obtained once after the injector has been
+ * created and kept for as long as the injector is used.
+ *
+ * The first method call on a prefetched proxy from the thread that started the prefetch
+ * waits for the asynchronously created object if it is not ready yet. If the
+ * asynchronous creation failed, the object is created synchronously instead. Calls from
+ * other threads are not affected.
+ *
+ * @author Simon Taddiken
+ */
+public final class ScopedProxyPrefetcher {
+
+    /** The pending prefetches of the current thread by the keys of the real bindings. */
+    private static final ThreadLocal<Map<Key<?>, CompletableFuture<?>>> PENDING = new ThreadLocal<>();
+
+    private final Map<Key<?>, Provider<?>> targets;
+
+    private ScopedProxyPrefetcher(Injector injector) {
+        final Map<Key<?>, Provider<?>> targets = new LinkedHashMap<>();
+        for (Injector current = injector; current != null; current = current
+                .getParent()) {
+            targets.putAll(ScopedProxyBinder.prefetchedTargets(current));
+        }
+        this.targets = targets;
+    }
+
+    /**
+     * Creates a prefetcher for all prefetched proxies of the given injector and of its
+     * parents. The injector must have been created completely.
+     *
+     * @param injector The injector.
+     * @return The prefetcher.
+     * @throws IllegalStateException If a prefetched proxy of the injector has not been
+     *             initialized yet.
+     */
+    public static ScopedProxyPrefetcher forInjector(Injector injector) {
+        checkNotNull(injector, "injector");
+        return new ScopedProxyPrefetcher(injector);
+    }
+
+    /**
+     * Starts creating the scoped objects of all prefetched proxies on the given
+     * executor. As scopes are usually bound to a thread, the creation of each object is
+     * wrapped using the given transfer function which must make the current scope
+     * available to the executing thread (like {@code ServletScopes::transferRequest}).
+     * <p>
+     * The returned object must be closed when the scope is left.
+     *
+     * @param executor The executor on which the objects will be created.
+     * @param scopeTransfer Transfers the current scope to the executing thread.
+     * @return Handle for the started prefetch.
+     */
+    public Prefetch prefetch(Executor executor,
+            UnaryOperator<Callable<Object>> scopeTransfer) {
+        checkNotNull(executor, "executor");
+        checkNotNull(scopeTransfer, "scopeTransfer");
+
+        // only publish the futures once all of them have been started. Otherwise a
+        // failure would leave futures of this scope behind for the next one
+        final Map<Key<?>, CompletableFuture<?>> started = new HashMap<>();
+        try {
+            for (final Map.Entry<Key<?>, Provider<?>> target : this.targets.entrySet()) {
+                final Callable<Object> transferred = scopeTransfer.apply(
+                        target.getValue()::get);
+                started.put(target.getKey(),
+                        ScopedProxies.callAsync(transferred, executor));
+            }
+        } catch (final RuntimeException | Error e) {
+            started.values().forEach(future -> future.cancel(false));
+            throw e;
+        }
+
+        Map<Key<?>, CompletableFuture<?>> pending = PENDING.get();
+        if (pending == null) {
+            pending = new HashMap<>();
+            PENDING.set(pending);
+        }
+        pending.putAll(started);
+        return new Prefetch(new ArrayList<>(started.keySet()));
+    }
+
+    /**
+     * Wraps the given provider so that it will wait for a pending prefetch of the
+     * current thread.
+     *
+     * @param key The key of the real binding.
+     * @param provider The provider of the real binding.
+     * @return The wrapped provider.
+     */
+    static <T> Provider<T> awaitingPrefetch(Key<T> key, Provider<T> provider) {
+        return () -> {
+            final Map<Key<?>, CompletableFuture<?>> pending = PENDING.get();
+            if (pending != null) {
+                final CompletableFuture<?> future = pending.remove(key);
+                if (future != null) {
+                    try {
+                        @SuppressWarnings("unchecked")
+                        final T result = (T) future.join();
+                        return result;
+                    } catch (final CompletionException | CancellationException e) {
+                        // create the object synchronously to report errors from within
+                        // the correct context
+                    }
+                }
+            }
+            return provider.get();
+        };
+    }
+
+    /**
+     * Handle to a prefetch that has been started by
+     * {@link ScopedProxyPrefetcher#prefetch(Executor, UnaryOperator)}. Must be closed on
+     * the same thread when leaving the scope.
+     *
+     * @author Simon Taddiken
+     */
+    public static final class Prefetch implements AutoCloseable {
+
+        private final List<Key<?>> keys;
+
+        private Prefetch(List<Key<?>> keys) {
+            this.keys = keys;
+        }
+
+        /**
+         * Discards all prefetched objects that have not been used on the current
+         * thread.
+         */
+        @Override
+        public void close() {
+            final Map<Key<?>, CompletableFuture<?>> pending = PENDING.get();
+            if (pending == null) {
+                return;
+            }
+            this.keys.forEach(pending::remove);
+            if (pending.isEmpty()) {
+                PENDING.remove();
+            }
+        }
+    }
+}
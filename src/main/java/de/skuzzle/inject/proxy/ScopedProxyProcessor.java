@@ -0,0 +1,203 @@
+package de.skuzzle.inject.proxy;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic.Kind;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * Annotation processor which records all types annotated with {@link ScopedProxy} in
+ * the {@link ScopedProxyIndex}. The processor is registered as service and will be
+ * picked up automatically by the compiler if this library is on the class path.
+ * <p>
+ * Incremental builds only pass the changed types to the processor. Thus an existing
+ * index in the output directory is merged with the newly recorded entries: entries of
+ * types that have been compiled again are replaced and entries of types that do not
+ * exist anymore are dropped.
+ *
+ * @author Simon Taddiken
+ */
+public final class ScopedProxyProcessor extends AbstractProcessor {
+
+    private final List<ScopedProxyIndex.Entry> entries = new ArrayList<>();
+
+    /** Binary names of all types that have been compiled in this run. */
+    private final Set<String> compiledTypes = new HashSet<>();
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        // the processor must also run if no @ScopedProxy annotation is left in order to
+        // remove stale entries from the index
+        return Collections.singleton("*");
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations,
+            RoundEnvironment roundEnv) {
+        recordCompiledTypes(roundEnv.getRootElements());
+        for (final Element element : roundEnv.getElementsAnnotatedWith(
+                ScopedProxy.class)) {
+            recordEntry((TypeElement) element);
+        }
+
+        if (roundEnv.processingOver()) {
+            writeIndex();
+        }
+        // do not claim any annotations so that other processors still see them
+        return false;
+    }
+
+    private void recordCompiledTypes(Iterable<? extends Element> elements) {
+        for (final Element element : elements) {
+            if (element instanceof TypeElement) {
+                this.compiledTypes.add(processingEnv.getElementUtils()
+                        .getBinaryName((TypeElement) element).toString());
+                recordCompiledTypes(element.getEnclosedElements());
+            }
+        }
+    }
+
+    private void recordEntry(TypeElement implementation) {
+        if (implementation.getKind() != ElementKind.CLASS
+                || implementation.getModifiers().contains(Modifier.ABSTRACT)) {
+            error(implementation, "@ScopedProxy can only be put on concrete classes");
+            return;
+        }
+
+        final AnnotationMirror annotation = getScopedProxyAnnotation(implementation);
+        TypeMirror boundType = implementation.asType();
+        TypeMirror scope = null;
+        final Map<? extends ExecutableElement, ? extends AnnotationValue> values = annotation
+                .getElementValues();
+        for (final Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> value : values
+                .entrySet()) {
+            final String name = value.getKey().getSimpleName().toString();
+            final TypeMirror type = (TypeMirror) value.getValue().getValue();
+            if ("scope".equals(name)) {
+                scope = type;
+            } else if ("bindAs".equals(name) && type.getKind() != TypeKind.VOID) {
+                boundType = type;
+            }
+        }
+
+        final TypeMirror erasedImplementation = processingEnv.getTypeUtils()
+                .erasure(implementation.asType());
+        final TypeMirror erasedBoundType = processingEnv.getTypeUtils()
+                .erasure(boundType);
+        if (!processingEnv.getTypeUtils().isAssignable(erasedImplementation,
+                erasedBoundType)) {
+            error(implementation, String.format(
+                    "%s can not be bound as scoped proxy to %s because it is not a sub type",
+                    boundType, implementation));
+            return;
+        }
+
+        this.entries.add(new ScopedProxyIndex.Entry(
+                binaryName(boundType),
+                binaryName(erasedImplementation),
+                binaryName(scope)));
+    }
+
+    private AnnotationMirror getScopedProxyAnnotation(TypeElement element) {
+        for (final AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            final TypeElement annotationType = (TypeElement) mirror.getAnnotationType()
+                    .asElement();
+            if (annotationType.getQualifiedName().contentEquals(
+                    ScopedProxy.class.getCanonicalName())) {
+                return mirror;
+            }
+        }
+        throw new IllegalStateException("element is not annotated with @ScopedProxy: "
+                + element);
+    }
+
+    private String binaryName(TypeMirror type) {
+        final TypeElement element = (TypeElement) ((DeclaredType) type).asElement();
+        return processingEnv.getElementUtils().getBinaryName(element).toString();
+    }
+
+    private void writeIndex() {
+        final Map<String, ScopedProxyIndex.Entry> merged = new LinkedHashMap<>();
+        final List<ScopedProxyIndex.Entry> existing = readExistingIndex();
+        for (final ScopedProxyIndex.Entry entry : existing) {
+            if (!this.compiledTypes.contains(entry.implementationType)
+                    && typeExists(entry.implementationType)) {
+                merged.put(entry.implementationType, entry);
+            }
+        }
+        for (final ScopedProxyIndex.Entry entry : this.entries) {
+            merged.put(entry.implementationType, entry);
+        }
+        if (merged.isEmpty() && existing.isEmpty()) {
+            return;
+        }
+
+        try {
+            final FileObject index = processingEnv.getFiler().createResource(
+                    StandardLocation.CLASS_OUTPUT, "", ScopedProxyIndex.LOCATION);
+            try (Writer writer = new OutputStreamWriter(index.openOutputStream(),
+                    StandardCharsets.UTF_8)) {
+                for (final ScopedProxyIndex.Entry entry : merged.values()) {
+                    writer.write(entry.format());
+                    writer.write('\n');
+                }
+            }
+        } catch (final IOException e) {
+            processingEnv.getMessager().printMessage(Kind.ERROR, String.format(
+                    "Error writing scoped proxy index %s: %s",
+                    ScopedProxyIndex.LOCATION, e.getMessage()));
+        }
+    }
+
+    private List<ScopedProxyIndex.Entry> readExistingIndex() {
+        try {
+            final FileObject index = processingEnv.getFiler().getResource(
+                    StandardLocation.CLASS_OUTPUT, "", ScopedProxyIndex.LOCATION);
+            try (Reader reader = index.openReader(true)) {
+                return ScopedProxyIndex.read(reader);
+            }
+        } catch (final IOException | IllegalArgumentException e) {
+            // there is no index from a previous compilation or it is unreadable
+            return Collections.emptyList();
+        }
+    }
+
+    private boolean typeExists(String binaryName) {
+        return processingEnv.getElementUtils().getTypeElement(
+                binaryName.replace('$', '.')) != null;
+    }
+
+    private void error(Element element, String message) {
+        processingEnv.getMessager().printMessage(Kind.ERROR, message, element);
+    }
+}